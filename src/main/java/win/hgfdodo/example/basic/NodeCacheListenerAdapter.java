@@ -1,8 +1,8 @@
 package win.hgfdodo.example.basic;
 
-import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
 import org.apache.curator.framework.recipes.cache.NodeCacheListener;
-import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,21 +13,22 @@ import org.slf4j.LoggerFactory;
 class NodeCacheListenerAdapter implements NodeCacheListener {
     private Logger logger = LoggerFactory.getLogger(NodeCacheListenerAdapter.class);
 
-    private CuratorFramework client;
-    private String node;
+    private NodeCache nodeCache;
 
     /**
-     * @param client    already started client connection
-     * @param node      node path of cached node
+     * @param nodeCache node cache this listener is added to, its current data is used instead of reading zookeeper again
      */
-    public NodeCacheListenerAdapter(CuratorFramework client, String node) {
-        this.client = client;
-        this.node = node;
+    public NodeCacheListenerAdapter(NodeCache nodeCache) {
+        this.nodeCache = nodeCache;
     }
 
     public void nodeChanged() throws Exception {
-        Stat stat = new Stat();
-        byte[] data = this.client.getData().forPath(node);
-        logger.info("node changed, data is "+ new String(data)+ ", stat is "+ stat.toString());
+        ChildData current = nodeCache.getCurrentData();
+        if (current == null) {
+            logger.info("node deleted");
+            return;
+        }
+        byte[] data = current.getData();
+        logger.info("node changed, data is " + (data == null ? null : new String(data)) + ", stat is " + current.getStat());
     }
 }
\ No newline at end of file
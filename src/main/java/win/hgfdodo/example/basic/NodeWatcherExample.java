@@ -37,7 +37,7 @@ public class NodeWatcherExample {
         NodeCache nodeCache = new NodeCache(client, nodePath);
         try {
             nodeCache.start();
-            nodeCache.getListenable().addListener(new NodeCacheListenerAdapter(client, nodePath));
+            nodeCache.getListenable().addListener(new NodeCacheListenerAdapter(nodeCache));
         } catch (Exception e) {
             e.printStackTrace();
         }
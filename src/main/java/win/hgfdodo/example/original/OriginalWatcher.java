@@ -1,24 +1,564 @@
 package win.hgfdodo.example.original;
 
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 直接使用zookeeper原生客户端监听大量节点
+ * <p>
+ * 监听若干父节点的子节点列表和每个子节点的数据。watch是一次性的，事件触发后在异步读取时重新注册；
+ * 所有读取都使用异步的getData、getChildren，回调在zookeeper事件线程中依次执行，不阻塞也不需要加锁。
+ * <p>
+ * 每个父节点的子节点保存为按名字排序的数组，每个子节点只占一个名字和一个long型的mzxid，不缓存数据和Stat，数据随回调交给监听者；
+ * 所有节点共用同一个Watcher和回调对象，不为每个节点创建监听对象或Map节点，适合监听十万以上的节点。
+ * <p>
+ * 连接断开期间失败的读取在重连后重试；会话过期后在单独的线程中重新创建连接（失败时按指数退避重试），
+ * 重新读取所有父节点和子节点并注册watch，与本地记录比较后只通知真正的变化。
+ * 旧连接关闭时未完成的读取可能在新连接重试之后才失败，这些读取在新连接可用时立即重新发出，
+ * 新连接第一次读取成功后也再检查一次待重试的读取。
+ * <p>
+ * 使用说明：
+ * 1. 使用连接串实例化，添加Listener，对每个父节点调用watch
+ * 2. 需要等待首次加载时调用awaitSynced
+ * 3. 退出前调用close
+ * <p>
  * Created by guangfuhe on 2017/9/2.
  */
-public class OriginalWatcher {
-    private ZooKeeper client;
+public class OriginalWatcher implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(OriginalWatcher.class);
+
+    /**
+     * 节点变化的回调，在zookeeper事件线程中执行，不能阻塞
+     */
+    public interface Listener {
+        void nodeAdded(String path, byte[] data, Stat stat);
+
+        void nodeUpdated(String path, byte[] data, Stat stat);
+
+        void nodeRemoved(String path);
+    }
+
+    private String connectString;
+    private int sessionTimeout;
+
+    private volatile ZooKeeper client;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 还没有读到数据的子节点的mzxid
+     */
+    private final static long UNREAD = 0;
+
+    /**
+     * 已通知删除、等待子节点列表刷新的子节点的mzxid
+     */
+    private final static long REMOVED = -1;
+
+    /**
+     * 一个父节点的子节点，names按名字排序，mzxids与names一一对应。
+     * 子节点列表变化时整体替换，mzxid只在zookeeper事件线程中修改
+     */
+    private static class Children {
+        final String[] names;
+        final long[] mzxids;
+
+        Children(String[] names, long[] mzxids) {
+            this.names = names;
+            this.mzxids = mzxids;
+        }
+    }
+
+    private final static Children EMPTY = new Children(new String[0], new long[0]);
+
+    /**
+     * 父节点到子节点的映射
+     */
+    private final Map<String, Children> parents = new ConcurrentHashMap<String, Children>();
+
+    /**
+     * 连接断开导致失败、需要在重连后重试的读取
+     */
+    private final Set<String> retryChildren = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> retryData = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * 已发出还未回调的异步读取数
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+
+    /**
+     * 会话过期后重新创建连接的线程，不在旧连接的事件线程中创建
+     */
+    private final ScheduledExecutorService reconnectExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "OriginalWatcher-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final static long MIN_RECONNECT_DELAY = 100;
+
+    /**
+     * 新连接第一次读取成功后再重试一次旧连接晚到的失败
+     */
+    private volatile boolean drainAfterRead = false;
+
+    private final Watcher connectionWatcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            switch (event.getState()) {
+                case SyncConnected:
+                    logger.info("connected to {}", connectString);
+                    retry();
+                    break;
+                case Disconnected:
+                    logger.info("disconnected from {}", connectString);
+                    break;
+                case Expired:
+                    logger.warn("session of {} expired, reconnect", connectString);
+                    reconnect();
+                    break;
+                default:
+                    logger.info("connection state of {} is {}", connectString, event.getState());
+            }
+        }
+    };
+
+    /**
+     * 所有父节点共用的子节点列表watch，触发后重新读取子节点列表
+     */
+    private final Watcher childWatcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            events.incrementAndGet();
+            switch (event.getType()) {
+                case NodeChildrenChanged:
+                case NodeCreated:
+                case NodeDeleted:
+                    readChildren(event.getPath());
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * 所有子节点共用的数据watch，触发后重新读取数据
+     */
+    private final Watcher dataWatcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            events.incrementAndGet();
+            switch (event.getType()) {
+                case NodeDataChanged:
+                    readData(event.getPath());
+                    break;
+                case NodeDeleted:
+                    removed(event.getPath());
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private final AsyncCallback.ChildrenCallback childrenCallback = new AsyncCallback.ChildrenCallback() {
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            try {
+                switch (KeeperException.Code.get(rc)) {
+                    case OK:
+                        childrenRead(path, children);
+                        drainIfNeeded(ctx);
+                        break;
+                    case NONODE:
+                        //父节点不存在，删除已知的子节点并等待父节点创建
+                        childrenRead(path, null);
+                        ZooKeeper zooKeeper = client;
+                        outstanding.incrementAndGet();
+                        zooKeeper.exists(path, childWatcher, existsCallback, zooKeeper);
+                        break;
+                    case CONNECTIONLOSS:
+                    case SESSIONEXPIRED:
+                        retryChildren(path, ctx);
+                        break;
+                    default:
+                        logger.error("get children of {} error: {}", path, KeeperException.Code.get(rc));
+                }
+            } finally {
+                done();
+            }
+        }
+    };
+
+    private final AsyncCallback.StatCallback existsCallback = new AsyncCallback.StatCallback() {
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            try {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    //检查期间父节点已创建，exists的watch不会再触发
+                    readChildren(path);
+                } else if (rc != KeeperException.Code.NONODE.intValue()) {
+                    retryChildren(path, ctx);
+                }
+            } finally {
+                done();
+            }
+        }
+    };
+
+    private final AsyncCallback.DataCallback dataCallback = new AsyncCallback.DataCallback() {
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            try {
+                switch (KeeperException.Code.get(rc)) {
+                    case OK:
+                        dataRead(path, data, stat);
+                        drainIfNeeded(ctx);
+                        break;
+                    case NONODE:
+                        removed(path);
+                        break;
+                    case CONNECTIONLOSS:
+                    case SESSIONEXPIRED:
+                        retryData(path, ctx);
+                        break;
+                    default:
+                        logger.error("get data of {} error: {}", path, KeeperException.Code.get(rc));
+                }
+            } finally {
+                done();
+            }
+        }
+    };
 
     public OriginalWatcher(String connectString) throws IOException {
-        this.client = new ZooKeeper(connectString, 6000, new Watcher() {
-            public void process(WatchedEvent event) {
-                switch (event.getType()){
-                    case EventType.
+        this(connectString, 6000);
+    }
+
+    public OriginalWatcher(String connectString, int sessionTimeout) throws IOException {
+        this.connectString = connectString;
+        this.sessionTimeout = sessionTimeout;
+        this.client = new ZooKeeper(connectString, sessionTimeout, connectionWatcher);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 监听parent的子节点和每个子节点的数据，已有的子节点回调nodeAdded
+     */
+    public void watch(String parent) {
+        if (closed) {
+            throw new IllegalStateException("watcher of " + connectString + " is closed");
+        }
+        if (parents.containsKey(parent)) {
+            return;
+        }
+        parents.put(parent, EMPTY);
+        readChildren(parent);
+    }
+
+    /**
+     * 等待已发出的异步读取全部完成
+     *
+     * @return 是否在超时前完成
+     */
+    public boolean awaitSynced(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(time);
+        synchronized (outstanding) {
+            while (outstanding.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
                 }
+                outstanding.wait(remaining);
             }
-        });
+        }
+        return true;
+    }
+
+    public void close() {
+        closed = true;
+        reconnectExecutor.shutdownNow();
+        try {
+            client.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readChildren(String parent) {
+        if (closed || !parents.containsKey(parent)) {
+            return;
+        }
+        reads.incrementAndGet();
+        outstanding.incrementAndGet();
+        //回调的ctx为发出读取的连接，用于识别旧连接晚到的失败
+        ZooKeeper zooKeeper = client;
+        zooKeeper.getChildren(parent, childWatcher, childrenCallback, zooKeeper);
+    }
+
+    private void readData(String path) {
+        if (closed) {
+            return;
+        }
+        reads.incrementAndGet();
+        outstanding.incrementAndGet();
+        ZooKeeper zooKeeper = client;
+        zooKeeper.getData(path, dataWatcher, dataCallback, zooKeeper);
+    }
+
+    private void done() {
+        if (outstanding.decrementAndGet() == 0) {
+            synchronized (outstanding) {
+                outstanding.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 按名字合并新旧子节点列表：新的子节点读取数据并注册watch，消失的子节点通知删除
+     *
+     * @param children 子节点列表，父节点不存在时为null
+     */
+    private void childrenRead(String parent, List<String> children) {
+        Children known = parents.get(parent);
+        if (known == null) {
+            return;
+        }
+        String[] names = children == null ? new String[0] : children.toArray(new String[children.size()]);
+        Arrays.sort(names);
+        long[] mzxids = new long[names.length];
+        int i = 0;
+        int j = 0;
+        while (i < known.names.length || j < names.length) {
+            int compare = i == known.names.length ? 1 : j == names.length ? -1 : known.names[i].compareTo(names[j]);
+            if (compare < 0) {
+                //子节点已删除
+                if (known.mzxids[i] > 0) {
+                    notifyRemoved(parent + "/" + known.names[i]);
+                }
+                i++;
+            } else if (compare > 0 || known.mzxids[i] == REMOVED) {
+                //新的子节点，或者删除后又创建的子节点
+                mzxids[j] = UNREAD;
+                readData(parent + "/" + names[j]);
+                if (compare == 0) {
+                    i++;
+                }
+                j++;
+            } else {
+                //已有的子节点保留mzxid，正在读取的不重复读取
+                mzxids[j] = known.mzxids[i];
+                i++;
+                j++;
+            }
+        }
+        parents.put(parent, new Children(names, mzxids));
+    }
+
+    private void dataRead(String path, byte[] data, Stat stat) {
+        int split = path.lastIndexOf('/');
+        Children known = parents.get(split == 0 ? "/" : path.substring(0, split));
+        int index = known == null ? -1 : Arrays.binarySearch(known.names, path.substring(split + 1));
+        if (index < 0 || known.mzxids[index] == REMOVED) {
+            //读取期间已删除
+            return;
+        }
+        long previous = known.mzxids[index];
+        known.mzxids[index] = stat.getMzxid();
+        if (previous == UNREAD) {
+            for (Listener listener : listeners) {
+                listener.nodeAdded(path, data, stat);
+            }
+        } else if (previous != stat.getMzxid()) {
+            for (Listener listener : listeners) {
+                listener.nodeUpdated(path, data, stat);
+            }
+        }
+    }
+
+    /**
+     * 子节点被删除，先标记为REMOVED，子节点列表刷新时移除
+     */
+    private void removed(String path) {
+        int split = path.lastIndexOf('/');
+        Children known = parents.get(split == 0 ? "/" : path.substring(0, split));
+        int index = known == null ? -1 : Arrays.binarySearch(known.names, path.substring(split + 1));
+        if (index < 0) {
+            return;
+        }
+        long previous = known.mzxids[index];
+        known.mzxids[index] = REMOVED;
+        if (previous > 0) {
+            notifyRemoved(path);
+        }
+    }
+
+    private void notifyRemoved(String path) {
+        for (Listener listener : listeners) {
+            listener.nodeRemoved(path);
+        }
+    }
+
+    /**
+     * 重连后重试连接断开期间失败的读取，在zookeeper事件线程中执行。
+     * 只有remove成功的一方重新读取，与retryChildren、retryData同时执行时不会重复读取
+     */
+    private void retry() {
+        for (String parent : retryChildren) {
+            if (retryChildren.remove(parent)) {
+                readChildren(parent);
+            }
+        }
+        for (String path : retryData) {
+            if (retryData.remove(path)) {
+                readData(path);
+            }
+        }
+    }
+
+    /**
+     * 记录失败的子节点列表读取。旧连接的读取失败时新连接可能已经完成retry，新连接可用时立即重新读取
+     *
+     * @param ctx 发出读取的连接
+     */
+    private void retryChildren(String parent, Object ctx) {
+        retryChildren.add(parent);
+        if (isStale(ctx) && retryChildren.remove(parent)) {
+            readChildren(parent);
+        }
+    }
+
+    private void retryData(String path, Object ctx) {
+        retryData.add(path);
+        if (isStale(ctx) && retryData.remove(path)) {
+            readData(path);
+        }
+    }
+
+    /**
+     * @return 读取由旧连接发出，且当前连接已可用
+     */
+    private boolean isStale(Object ctx) {
+        ZooKeeper current = client;
+        return ctx != current && current.getState().isConnected();
+    }
+
+    /**
+     * 新连接第一次读取成功时再重试一次，处理在新连接的retry之前晚到的失败
+     */
+    private void drainIfNeeded(Object ctx) {
+        if (drainAfterRead && ctx == client) {
+            drainAfterRead = false;
+            retry();
+        }
+    }
+
+    /**
+     * 会话过期后所有watch失效：重新创建连接，重新读取所有父节点和已知子节点
+     */
+    private void reconnect() {
+        if (closed) {
+            return;
+        }
+        //先记录需要重新读取的节点，新连接的SyncConnected事件触发retry
+        for (Map.Entry<String, Children> entry : parents.entrySet()) {
+            retryChildren.add(entry.getKey());
+            Children known = entry.getValue();
+            for (int i = 0; i < known.names.length; i++) {
+                if (known.mzxids[i] != REMOVED) {
+                    retryData.add(entry.getKey() + "/" + known.names[i]);
+                }
+            }
+        }
+        scheduleReconnect(0);
+    }
+
+    /**
+     * 在reconnectExecutor中创建新连接，失败时按指数退避重试，最长间隔为sessionTimeout
+     */
+    private void scheduleReconnect(final long delayMillis) {
+        try {
+            reconnectExecutor.schedule(new Runnable() {
+                public void run() {
+                    if (closed) {
+                        return;
+                    }
+                    ZooKeeper expired = client;
+                    try {
+                        client = new ZooKeeper(connectString, sessionTimeout, connectionWatcher);
+                        drainAfterRead = true;
+                    } catch (Exception e) {
+                        long next = Math.min(Math.max(delayMillis * 2, MIN_RECONNECT_DELAY), sessionTimeout);
+                        logger.error("reconnect to {} error, retry in {}ms", connectString, next, e);
+                        scheduleReconnect(next);
+                        return;
+                    }
+                    try {
+                        expired.close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("watcher of {} is closed, stop reconnecting", connectString);
+        }
+    }
+
+    /**
+     * @return 监听的子节点数
+     */
+    public int getWatchedCount() {
+        int count = 0;
+        for (Children known : parents.values()) {
+            count += known.names.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return 收到的watch事件数
+     */
+    public long getEventCount() {
+        return events.get();
+    }
+
+    /**
+     * @return 发出的异步读取数
+     */
+    public long getReadCount() {
+        return reads.get();
     }
 }
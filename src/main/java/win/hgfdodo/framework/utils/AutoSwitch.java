@@ -1,39 +1,162 @@
 package win.hgfdodo.framework.utils;
 
+import com.google.common.base.Function;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.framework.recipes.cache.PathChildrenCache;
-import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
-import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.framework.api.transaction.OperationType;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by guangfuhe on 2017/8/27.
  * 使用说明：
  * 1. 使用项目属性和zookeeper连接配置实例化
  * 2. 使用init初始化节点和连接，开启自动切换逻辑。
+ * <p>
+ * 不希望阻塞启动线程时，使用start代替init：start立即返回成为工作实例时完成的future，
+ * 备用实例可以先完成启动、预热缓存。通过getListenable注册AutoSwitchListener，
+ * 每次成为工作实例或失去工作权时都会回调，失去工作权后whenActive返回新的future。
+ * <p>
+ * 每次成为工作实例时都有一个epoch（getEpoch），取自持有的zookeeper节点的czxid，后接替的实例epoch一定更大。
+ * 工作实例可以把epoch随写请求一起发给下游，下游只保留见过的最大epoch，拒绝更小epoch的写入，
+ * 被替换但尚未察觉的旧工作实例因此无法再写入，不需要每次写入都访问zookeeper。
+ * <p>
+ * 计划内切换（如滚动发布）：备用实例预热完成后调用setReady(true)，工作实例调用handoff把工作权交给已就绪的备用实例，
+ * 或调用relinquish主动让出，不需要等待会话超时。
+ * <p>
+ * 切换耗时按阶段记录在LatencyHistogram中（getMetrics），可用于对照实际切换耗时调整会话超时：
+ * 发现节点删除 -> 发起创建 -> 确认持有 -> 激活完成，以及本实例连接断开到重新激活的耗时。
  */
 public class AutoSwitch {
     private static Logger logger = LoggerFactory.getLogger(AutoSwitch.class);
 
+    /**
+     * 选举方式
+     */
+    public enum ElectionMode {
+        /**
+         * 所有实例竞争创建root/project临时节点，创建成功的实例工作。
+         * 节点消失时所有备用实例同时尝试创建，只有一个成功。
+         */
+        EPHEMERAL_NODE,
+        /**
+         * 每个实例在root-election/project下注册一次临时顺序节点，序号最小的实例工作，
+         * 其他实例只监听排在自己前一位的节点。工作实例退出时只通知下一位，不需要竞争创建节点。
+         */
+        CANDIDATE_QUEUE
+    }
+
+    private static final String CANDIDATE_PREFIX = "candidate-";
+
     private CuratorFramework client;
 
     /**
-     * AtuoSwitch 开始工作后，阻塞主进程。直到监听到创建新节点的连接是本连接。
+     * 本实例当前是否为工作实例
+     */
+    private volatile boolean active = false;
+
+    /**
+     * 最近一次成为工作实例时的epoch，见getEpoch
+     */
+    private volatile long epoch = -1;
+
+    /**
+     * 连接是否由本实例创建，是则close时一并关闭
+     */
+    private boolean ownsClient = false;
+
+    /**
+     * 由AutoSwitchManager管理时为true：连接状态由manager统一分发，不单独注册监听
+     */
+    private boolean managed = false;
+
+    private volatile boolean closed = false;
+
+    private final ConnectionStateListenerAdapter connectionStateListener = new ConnectionStateListenerAdapter();
+
+    /**
+     * 本次切换各阶段的时间点（System.nanoTime），0表示未发生，激活时计入直方图后清零
+     */
+    private volatile long removedAt;
+    private volatile long createAt;
+    private volatile long confirmedAt;
+    private volatile long lostAt;
+
+    /**
+     * 发现节点（或前一位候选节点）删除到发起创建
+     */
+    private final LatencyHistogram reactionHistogram = new LatencyHistogram();
+    /**
+     * 发起创建到确认持有节点
+     */
+    private final LatencyHistogram createHistogram = new LatencyHistogram();
+    /**
+     * 确认持有节点到激活完成
+     */
+    private final LatencyHistogram activateHistogram = new LatencyHistogram();
+    /**
+     * 发现节点删除到激活完成，即本实例视角的接替耗时
+     */
+    private final LatencyHistogram takeoverHistogram = new LatencyHistogram();
+    /**
+     * 本实例连接断开到重新激活，只在resilient模式下会话恢复后出现
+     */
+    private final LatencyHistogram recoveryHistogram = new LatencyHistogram();
+
+    /**
+     * 竞争创建节点失败的次数
+     */
+    private final AtomicLong failedCreates = new AtomicLong();
+    /**
+     * 绕过NodeCache直接读取节点重新判断归属的次数（重连后检查、补充监听）
+     */
+    private final AtomicLong resyncs = new AtomicLong();
+
+    /**
+     * 下一次成为工作实例时完成，失去工作权后替换为新的future
      */
-    private CountDownLatch countDownLatch = new CountDownLatch(1);
+    private volatile CompletableFuture<AutoSwitch> activation = new CompletableFuture<AutoSwitch>();
 
     /**
-     * 监听的对象为root节点，这样才能发现root/project节点的消失
+     * 工作状态变化的监听者，注册时可指定回调使用的线程池
      */
-    private PathChildrenCache pathChildrenCache;
+    private final ListenerContainer<AutoSwitchListener> listeners = new ListenerContainer<AutoSwitchListener>();
+
+    /**
+     * 只监听本项目的root/project节点，节点的数据和Stat随事件一起缓存，判断归属时不需要再读取节点。
+     * 其他项目的节点变化不会通知到本实例。
+     */
+    private NodeCache nodeCache;
 
     /**
      * project name.
@@ -51,6 +174,106 @@ public class AutoSwitch {
 
     private String projectFullPath;
 
+    private ElectionMode electionMode = ElectionMode.EPHEMERAL_NODE;
+
+    /**
+     * 连接断开时是否保留会话
+     * false：SUSPENDED或LOST时关闭连接，节点随之消失，由其他实例接替（默认，原有行为）
+     * true：SUSPENDED时只暂停本地工作，会话在超时前恢复则立即继续工作；会话过期（LOST）后重新参与选举
+     */
+    private boolean resilient = false;
+
+    /**
+     * CANDIDATE_QUEUE模式下候选节点的父节点：root-election/project
+     */
+    private String candidatesPath;
+
+    /**
+     * CANDIDATE_QUEUE模式下本实例的候选节点
+     */
+    private String candidatePath;
+
+    /**
+     * 已就绪备用实例的父节点：root-ready/project，子节点为各实例的projectNode
+     */
+    private String readyPath;
+
+    /**
+     * 本实例是否已声明就绪，重连后需要重新创建就绪节点
+     */
+    private volatile boolean ready = false;
+
+    /**
+     * 交接标记节点：root-handoff/project，数据为指定的接替实例。
+     * EPHEMERAL_NODE模式下标记存在时只有指定的实例可以创建root/project节点，其他实例等待标记删除；
+     * 两种模式下指定实例开始工作后都删除标记，交出方据此确认接替完成。
+     */
+    private String handoffPath;
+
+    private final AtomicBoolean handoffWatched = new AtomicBoolean(false);
+
+    /**
+     * 串行化handoff和relinquish。等待接替时不能持有this的锁，否则事件线程中的activate/deactivate会被阻塞
+     */
+    private final Object handoffLock = new Object();
+
+    /**
+     * 交接标记被删除（接替完成或交接超时）后，节点不存在时重新参与竞争
+     */
+    private final CuratorWatcher handoffWatcher = new CuratorWatcher() {
+        public void process(WatchedEvent event) throws Exception {
+            handoffWatched.set(false);
+            if (!active && event.getType() == Watcher.Event.EventType.NodeDeleted
+                    && null == client.checkExists().forPath(projectFullPath)) {
+                markRemoved();
+                createNode(CreateMode.EPHEMERAL);
+            }
+        }
+    };
+
+    /**
+     * 前一位候选节点被删除时重新检查排队情况
+     */
+    private final CuratorWatcher predecessorWatcher = new CuratorWatcher() {
+        public void process(WatchedEvent event) throws Exception {
+            if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                logger.info(project + "-" + projectNode + ": predecessor " + event.getPath() + " removed!");
+                markRemoved();
+                checkQueue();
+            }
+        }
+    };
+
+    /**
+     * EPHEMERAL_NODE模式下创建节点失败（节点已被其他实例创建）后，对节点单独设置一次监听。
+     * NodeCache在节点被快速创建又删除时可能丢失监听，这里保证本实例一定能收到节点删除的通知。
+     */
+    private final AtomicBoolean ownerWatched = new AtomicBoolean(false);
+
+    private final CuratorWatcher ownerWatcher = new CuratorWatcher() {
+        public void process(WatchedEvent event) throws Exception {
+            if (event.getType() == Watcher.Event.EventType.None) {
+                //连接状态变化：连接恢复后监听自动重新注册，不在事件线程中同步读取；
+                //会话过期时监听失效，由连接状态监听重新检查节点归属时再设置
+                if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                    ownerWatched.set(false);
+                }
+                return;
+            }
+            ownerWatched.set(false);
+            if (active) {
+                return;
+            }
+            if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                logger.info(project + "-" + projectNode + ": node " + event.getPath() + " removed!");
+                markRemoved();
+                createNode(CreateMode.EPHEMERAL);
+            } else {
+                watchOwner();
+            }
+        }
+    };
+
     /**
      * 使用默认root构造自动切换实例
      *
@@ -68,6 +291,7 @@ public class AutoSwitch {
                 .retryPolicy(new ExponentialBackoffRetry(1000, 3))
                 .sessionTimeoutMs(60 * 1000)
                 .build();
+        this.ownsClient = true;
     }
 
     /**
@@ -89,6 +313,7 @@ public class AutoSwitch {
                 .retryPolicy(new ExponentialBackoffRetry(1000, 3))
                 .sessionTimeoutMs(60 * 1000)
                 .build();
+        this.ownsClient = true;
     }
 
     /**
@@ -108,75 +333,308 @@ public class AutoSwitch {
     }
 
 
-    class PathChildCacheListenerAdapter implements PathChildrenCacheListener {
+    class ProjectNodeListener implements NodeCacheListener {
 
-        public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+        public void nodeChanged() throws Exception {
             logger.info("in project node " + projectNode);
-            switch (event.getType()) {
+            ChildData data = nodeCache.getCurrentData();
+            if (null == data) {
                 /**
-                 * autoswitch标志节点 初始化成功
-                 * 此时pathChildrenCacheEvent.getData()为空
+                 * autoswitch标志节点被删除，尝试创建
                  */
-                case INITIALIZED:
-                    logger.info(project + "-" + projectNode + ": node initialized!");
-                    if (ephemeralOwnerIsCurrentConnection()) {
-                        countDownLatch.countDown();
-                    }
-                    break;
+                logger.warn(project + "-" + projectNode + ": node removed! create node by " + projectNode);
+                markRemoved();
+                deactivate();
+                createNode(CreateMode.EPHEMERAL);
+            } else {
                 /**
-                 * autoswitch标志节点 成功增加节点，表示该节点能运行任务
-                 * 此时触发任务。
+                 * autoswitch标志节点被创建或更新，创建者是本连接时触发任务
                  */
-                case CHILD_ADDED:
-                    logger.info(project + "-" + projectNode + ": node added! " +
-                            "node.path=" + new String(event.getData().getPath()) + ", " +
-                            "node.date=" + new String(event.getData().getData()) + ", " +
-                            "node.stat" + event.getData().getStat());
-                    if (ephemeralOwnerIsCurrentConnection()) {
-                        countDownLatch.countDown();
-                    }
-                    break;
+                logger.info(project + "-" + projectNode + ": node changed! " +
+                        "node.path=" + data.getPath() + ", " +
+                        "node.date=" + (null == data.getData() ? null : new String(data.getData())) + ", " +
+                        "node.stat" + data.getStat());
+                if (ephemeralOwnerIsCurrentConnection(data.getStat())) {
+                    markConfirmed();
+                    activate(data.getStat().getCzxid());
+                } else {
+                    deactivate();
+                }
+            }
+        }
+    }
 
-                case CHILD_REMOVED:
-                    logger.warn(project + "-" + projectNode + ": node removed! create node by " + projectNode);
-                    createNode(CreateMode.EPHEMERAL);
-                    break;
-                case CHILD_UPDATED:
-                    logger.info(project + "-" + projectNode + ": node updated! " +
-                            "node.path=" + new String(event.getData().getPath()) + ", " +
-                            "node.date=" + new String(event.getData().getData()) + ", " +
-                            "node.stat" + event.getData().getStat());
-                    break;
+    class ConnectionStateListenerAdapter implements ConnectionStateListener {
+
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (resilient) {
+                resilientStateChanged(newState);
+                return;
+            }
+            switch (newState) {
                 /**
                  * 网络连接异常，应该主动断开连接
                  * 断开连接后，节点会自动消失
                  */
-                case CONNECTION_LOST:
-                case CONNECTION_SUSPENDED:
+                case LOST:
+                case SUSPENDED:
                     logger.info(project + "-" + projectNode + ": node connection error!, auto close zookeeper client");
+                    markLost();
+                    deactivate();
                     client.close();
                     break;
-                case CONNECTION_RECONNECTED:
-                    logger.info(project + "-" + projectNode + ": node reconnected! " +
-                            "node.path=" + new String(event.getData().getPath()) + ", " +
-                            "node.date=" + new String(event.getData().getData()) + ", " +
-                            "node.stat" + event.getData().getStat());
-                    if (null != pathChildrenCache) {
-                        logger.warn("rebuild path children cache");
-                        pathChildrenCache.rebuild();
-                    } else {
-                        logger.warn("path children cache is null, need to renew path children cache and watch event!");
-                        pathChildrenCache = new PathChildrenCache(client, root, true);
-                        pathChildrenCache.getListenable().addListener(new PathChildCacheListenerAdapter());
-                    }
+                /**
+                 * 重连后nodeCache会自动重新读取节点，节点有变化时触发nodeChanged
+                 */
+                case RECONNECTED:
+                    logger.info(project + "-" + projectNode + ": node reconnected! node.stat" +
+                            (null == nodeCache || null == nodeCache.getCurrentData() ? null : nodeCache.getCurrentData().getStat()));
+                    break;
+                default:
                     break;
             }
+        }
 
+        /**
+         * 保留会话：断开期间暂停工作，重连后按节点的实际归属恢复或重新参与选举
+         */
+        private void resilientStateChanged(ConnectionState newState) {
+            switch (newState) {
+                /**
+                 * 连接断开，会话可能仍然有效，但本实例无法确认仍持有节点，暂停工作
+                 */
+                case SUSPENDED:
+                    logger.warn(project + "-" + projectNode + ": connection suspended, pause working and wait for reconnection");
+                    markLost();
+                    deactivate();
+                    break;
+                /**
+                 * 会话已过期，临时节点已被删除，等待重连后重新参与选举
+                 */
+                case LOST:
+                    logger.warn(project + "-" + projectNode + ": session lost, wait for a new session");
+                    markLost();
+                    deactivate();
+                    break;
+                case RECONNECTED:
+                    logger.info(project + "-" + projectNode + ": node reconnected, check owner of the node");
+                    reconcile();
+                    break;
+                default:
+                    break;
+            }
         }
     }
 
+    /**
+     * 重连后检查节点归属：会话未过期且仍持有节点时立即恢复工作，节点不存在时重新参与选举
+     */
+    private void reconcile() {
+        resyncs.incrementAndGet();
+        try {
+            if (ready) {
+                setReady(true);
+            }
+            if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+                checkQueue();
+                return;
+            }
+            Stat stat = client.checkExists().forPath(projectFullPath);
+            if (null == stat) {
+                createNode(CreateMode.EPHEMERAL);
+            } else if (ephemeralOwnerIsCurrentConnection(stat)) {
+                markConfirmed();
+                activate(stat.getCzxid());
+            } else {
+                watchOwner();
+            }
+        } catch (Exception e) {
+            logger.error(project + "-" + projectNode + ": check owner of " + projectFullPath + " error", e);
+        }
+    }
+
+    /**
+     * 初始化节点和连接，阻塞直到本实例成为工作实例
+     */
     public void init() {
-        this.client.start();
+        CompletableFuture<AutoSwitch> future = start();
+        try {
+            logger.info(project + "-" + projectNode + ":waiting for switch to this progress...");
+            future.get();
+            logger.info(project + "-" + projectNode + ": get right, start to run progress!");
+        } catch (InterruptedException e) {
+            logger.error(project + "-" + projectNode + ":countDownLatch intterupted error!", e);
+        } catch (ExecutionException e) {
+            logger.error(project + "-" + projectNode + ": wait for activation error!", e);
+        }
+    }
+
+    /**
+     * 初始化节点和连接，不阻塞调用线程
+     * <p>
+     * 返回的future在zookeeper事件线程中完成，耗时的接管逻辑应使用thenRunAsync等方法指定线程池。
+     *
+     * @return 本实例第一次成为工作实例时完成的future
+     */
+    public CompletableFuture<AutoSwitch> start() {
+        CompletableFuture<AutoSwitch> future = activation;
+        readyPath = root + "-ready/" + project;
+        handoffPath = root + "-handoff/" + project;
+        if (this.client.getState() == CuratorFrameworkState.LATENT) {
+            this.client.start();
+        }
+        if (!managed) {
+            this.client.getConnectionStateListenable().addListener(connectionStateListener);
+        }
+        if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+            joinQueue();
+        } else {
+            joinRace();
+        }
+
+        logger.info(project + "-" + projectNode + ":auto switch start working...");
+        return future;
+    }
+
+    /**
+     * 退出选举：停止工作，关闭节点监听，删除本实例持有的节点和候选节点，其他实例立即接替。
+     * 连接由本实例创建时一并关闭，否则由调用方关闭。
+     */
+    public void close() {
+        closed = true;
+        if (!managed) {
+            client.getConnectionStateListenable().removeListener(connectionStateListener);
+        }
+        deactivate();
+        if (nodeCache != null) {
+            try {
+                nodeCache.close();
+            } catch (IOException e) {
+                logger.error(project + "-" + projectNode + ": close nodeCache error", e);
+            }
+        }
+        try {
+            if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+                if (candidatePath != null) {
+                    client.delete().forPath(candidatePath);
+                }
+            } else {
+                Stat stat = client.checkExists().forPath(projectFullPath);
+                if (null != stat && ephemeralOwnerIsCurrentConnection(stat)) {
+                    client.delete().withVersion(stat.getVersion()).forPath(projectFullPath);
+                }
+            }
+            if (ready) {
+                setReady(false);
+            }
+        } catch (KeeperException.NoNodeException e) {
+            logger.debug(project + "-" + projectNode + ": node is already removed");
+        } catch (Exception e) {
+            logger.error(project + "-" + projectNode + ": remove node on close error", e);
+        }
+        if (ownsClient) {
+            client.close();
+        }
+        logger.info(project + "-" + projectNode + ": auto switch closed");
+    }
+
+    /**
+     * 由AutoSwitchManager设置，需在start之前调用
+     */
+    void setManaged(boolean managed) {
+        this.managed = managed;
+    }
+
+    /**
+     * AutoSwitchManager分发的连接状态变化
+     */
+    void connectionStateChanged(ConnectionState newState) {
+        connectionStateListener.stateChanged(client, newState);
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    /**
+     * 成为工作实例：记录epoch，完成当前future并通知监听者，已是工作实例时不重复通知
+     *
+     * @param epoch 持有节点的czxid
+     */
+    private synchronized void activate(long epoch) {
+        if (active || closed) {
+            return;
+        }
+        this.epoch = epoch;
+        active = true;
+        recordTakeover(System.nanoTime());
+        logger.info(project + "-" + projectNode + ": activated with epoch " + epoch);
+        activation.complete(this);
+        listeners.forEach(new Function<AutoSwitchListener, Void>() {
+            public Void apply(AutoSwitchListener listener) {
+                listener.activated(AutoSwitch.this);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 失去工作权：换上新的future等待下一次成为工作实例，并通知监听者
+     */
+    private synchronized void deactivate() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        activation = new CompletableFuture<AutoSwitch>();
+        logger.warn(project + "-" + projectNode + ": deactivated");
+        listeners.forEach(new Function<AutoSwitchListener, Void>() {
+            public Void apply(AutoSwitchListener listener) {
+                listener.deactivated(AutoSwitch.this);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 本实例最近一次成为工作实例时的epoch，从未成为工作实例时为-1
+     * <p>
+     * 取自持有节点的czxid：EPHEMERAL_NODE模式为root/project节点，CANDIDATE_QUEUE模式为本实例的候选节点。
+     * zxid全局递增，后创建的节点czxid更大，因此后接替的实例epoch一定大于之前的工作实例。
+     * 会话未过期时恢复工作仍持有同一个节点，epoch不变。
+     *
+     * @return 工作实例的epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return 本实例当前是否为工作实例
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return 下一次成为工作实例时完成的future，当前已是工作实例时返回已完成的future
+     */
+    public CompletableFuture<AutoSwitch> whenActive() {
+        return activation;
+    }
+
+    /**
+     * 注册工作状态监听者。addListener(listener, executor)可指定回调线程池；不指定时在触发状态变化的线程中持有本实例的锁同步回调，
+     * 回调不能阻塞，见AutoSwitchListener。
+     */
+    public Listenable<AutoSwitchListener> getListenable() {
+        return listeners;
+    }
+
+    /**
+     * EPHEMERAL_NODE模式：节点不存在时创建，并监听节点变化
+     */
+    private void joinRace() {
         try {
             Stat stat = this.client.checkExists().forPath(this.projectFullPath);
             if (null == stat) {
@@ -192,15 +650,72 @@ public class AutoSwitch {
         } finally {
             watch();
         }
+    }
 
-        logger.info(project + "-" + projectNode + ":auto switch start working...");
-
+    /**
+     * CANDIDATE_QUEUE模式：注册临时顺序节点，排队等待
+     */
+    private void joinQueue() {
+        candidatesPath = root + "-election/" + project;
         try {
-            logger.info(project + "-" + projectNode + ":waiting for switch to this progress...");
-            countDownLatch.await();
-            logger.info(project + "-" + projectNode + ": get right, start to run progress!");
-        } catch (InterruptedException e) {
-            logger.error(project + "-" + projectNode + ":countDownLatch intterupted error!", e);
+            candidatePath = client.create().creatingParentsIfNeeded()
+                    .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                    .forPath(candidatesPath + "/" + CANDIDATE_PREFIX, projectNode.getBytes());
+            logger.info(project + "-" + projectNode + ": register candidate " + candidatePath);
+            checkQueue();
+        } catch (Exception e) {
+            logger.error(project + "-" + projectNode + ": register candidate under " + candidatesPath + " error", e);
+        }
+    }
+
+    /**
+     * 检查本实例在候选队列中的位置：排在第一位时开始工作，否则监听前一位候选节点
+     */
+    private synchronized void checkQueue() throws Exception {
+        if (closed) {
+            return;
+        }
+        while (true) {
+            List<String> candidates = client.getChildren().forPath(candidatesPath);
+            Collections.sort(candidates);
+            String self = candidatePath.substring(candidatePath.lastIndexOf('/') + 1);
+            int index = candidates.indexOf(self);
+            if (index < 0) {
+                logger.warn(project + "-" + projectNode + ": candidate " + candidatePath + " is gone, register again");
+                deactivate();
+                joinQueue();
+                return;
+            }
+            if (index == 0) {
+                logger.info(project + "-" + projectNode + ": candidate " + self + " is the first one");
+                Stat stat = client.checkExists().forPath(candidatePath);
+                if (null == stat) {
+                    //本实例的候选节点刚被删除，重新检查后会重新注册
+                    continue;
+                }
+                markConfirmed();
+                activate(stat.getCzxid());
+                if (projectNode.equals(readHandoff())) {
+                    //本实例是指定的接替实例，通知交出方接替完成
+                    logger.info(project + "-" + projectNode + ": take over " + candidatesPath + " by handoff");
+                    try {
+                        client.delete().forPath(handoffPath);
+                    } catch (KeeperException.NoNodeException e) {
+                        logger.debug("handoff node is removed");
+                    }
+                }
+                return;
+            }
+            deactivate();
+            String predecessor = candidatesPath + "/" + candidates.get(index - 1);
+            Stat stat = client.checkExists().usingWatcher(predecessorWatcher).forPath(predecessor);
+            if (null != stat) {
+                logger.info(project + "-" + projectNode + ": candidate " + self + " watch predecessor " + predecessor);
+                //删除的不是工作实例，本实例仍在等待，不计入切换耗时
+                removedAt = 0;
+                return;
+            }
+            //前一位在读取列表后已被删除，重新检查
         }
     }
 
@@ -208,31 +723,458 @@ public class AutoSwitch {
      * 检查并创建节点
      *
      * TODO: 怎么解决自动切换过程中，如果两节点同时发现节点不存在，均发起创建节点请求时，可能会造成一个请求异常的情况。
-     * 这个异常虽然对逻辑没有影响，但是不优雅
+     * 这个异常虽然对逻辑没有影响，但是不优雅。备用实例较多时可使用CANDIDATE_QUEUE模式避免竞争。
      * @param mode 节点的类型
      */
     private void createNode(CreateMode mode) {
+        if (closed) {
+            return;
+        }
         logger.info(project + "-" + projectNode + ": try create node ");
         try {
-            this.client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(projectFullPath);
+            String successor = handoffSuccessor();
+            if (null != successor && !successor.equals(projectNode)) {
+                logger.info(project + "-" + projectNode + ": node is handed off to " + successor + ", wait for it");
+                watchOwner();
+                return;
+            }
+            if (0 == createAt) {
+                createAt = System.nanoTime();
+            }
+            //节点数据为本实例的projectNode，交出方据此确认接替的是指定实例
+            this.client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(projectFullPath, projectNode.getBytes());
+            markConfirmed();
+            if (null != successor) {
+                //本实例是指定的接替实例，接替完成后删除交接标记
+                logger.info(project + "-" + projectNode + ": take over " + projectFullPath + " by handoff");
+                client.delete().forPath(handoffPath);
+            }
+        } catch (KeeperException.NodeExistsException e) {
+            logger.info(project + "-" + projectNode + ": node " + projectFullPath + " is created by other instance");
+            failedCreates.incrementAndGet();
+            removedAt = 0;
+            createAt = 0;
+            watchOwner();
         } catch (Exception e) {
             logger.error("create " + projectFullPath + " node error ", e);
         }
 
     }
 
-    private boolean ephemeralOwnerIsCurrentConnection() {
-        boolean res = false;
-        //获取临时节点和本连接的sessin标识。
-        Stat stat = new Stat();
+    /**
+     * 读取交接标记并监听其删除
+     *
+     * @return 指定的接替实例，没有进行中的交接时返回null
+     */
+    private String handoffSuccessor() throws Exception {
+        if (!handoffWatched.compareAndSet(false, true)) {
+            //已有监听，只读取数据
+            Stat stat = client.checkExists().forPath(handoffPath);
+            return null == stat ? null : readHandoff();
+        }
+        Stat stat = client.checkExists().usingWatcher(handoffWatcher).forPath(handoffPath);
+        if (null == stat) {
+            //exists在节点不存在时留下的监听会在下次交接时触发，不影响判断
+            return null;
+        }
+        return readHandoff();
+    }
+
+    private String readHandoff() throws Exception {
+        try {
+            return new String(client.getData().forPath(handoffPath));
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 声明本实例是否已预热完成，可以接受计划内交接
+     * <p>
+     * 就绪时在root-ready/project下创建以projectNode命名的临时节点，会话过期后节点消失，resilient模式下重连后重新创建。
+     * 需在start或init之后调用。
+     */
+    public void setReady(boolean ready) {
+        this.ready = ready;
+        String path = readyPath + "/" + projectNode;
         try {
-            client.getData().storingStatIn(stat).forPath(projectFullPath);
-            res = ephemeralOwnerIsCurrentConnection(stat);
+            if (ready) {
+                if (null == client.checkExists().forPath(path)) {
+                    client.create().creatingParentContainersIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path);
+                }
+            } else if (null != client.checkExists().forPath(path)) {
+                client.delete().forPath(path);
+            }
+        } catch (KeeperException.NodeExistsException e) {
+            logger.debug(project + "-" + projectNode + ": ready node exists");
+        } catch (KeeperException.NoNodeException e) {
+            logger.debug(project + "-" + projectNode + ": ready node not exists");
         } catch (Exception e) {
-            logger.error("get " + projectFullPath + " data error ", e);
+            throw new IllegalStateException("set ready of " + projectNode + " error", e);
         }
+    }
 
-        return res;
+    /**
+     * 把工作权交给任意一个已就绪的备用实例
+     * <p>
+     * EPHEMERAL_NODE模式按名字选第一个已就绪的实例；CANDIDATE_QUEUE模式只能交给排在下一位的实例，要求其已就绪。
+     *
+     * @param timeoutMillis 等待接替实例开始工作的最长时间
+     * @return 接替实例是否在超时前开始工作
+     */
+    public boolean handoff(long timeoutMillis) {
+        if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+            return handoff(nextCandidate(), timeoutMillis);
+        }
+        List<String> readies;
+        try {
+            readies = client.getChildren().forPath(readyPath);
+        } catch (KeeperException.NoNodeException e) {
+            readies = Collections.emptyList();
+        } catch (Exception e) {
+            throw new IllegalStateException("list ready instances of " + project + " error", e);
+        }
+        Collections.sort(readies);
+        for (String ready : readies) {
+            if (!ready.equals(projectNode)) {
+                return handoff(ready, timeoutMillis);
+            }
+        }
+        throw new IllegalStateException("no ready instance of " + project + " to hand off");
+    }
+
+    /**
+     * 把工作权交给指定的已就绪备用实例
+     * <p>
+     * 本实例先停止工作，再在一个事务中删除自己持有的节点并写入指定接替实例的交接标记，
+     * 其他备用实例看到标记后不参与竞争，指定实例创建节点后删除标记。超时未接替时本实例删除标记，所有备用实例重新竞争。
+     * CANDIDATE_QUEUE模式在一个事务中删除本实例的候选节点、重新排到队尾并写入交接标记，排在下一位的指定实例开始工作后删除标记。
+     * 写入失败时本实例按节点的实际归属恢复工作后抛出异常。
+     *
+     * @param successor     接替实例的projectNode
+     * @param timeoutMillis 等待接替实例开始工作的最长时间
+     * @return 接替实例是否在超时前开始工作
+     */
+    public boolean handoff(String successor, long timeoutMillis) {
+        if (null == successor) {
+            throw new IllegalStateException("no candidate of " + project + " to hand off");
+        }
+        synchronized (handoffLock) {
+            if (!active) {
+                throw new IllegalStateException(project + "-" + projectNode + " is not active, can not hand off");
+            }
+            try {
+                if (null == client.checkExists().forPath(readyPath + "/" + successor)) {
+                    throw new IllegalStateException("successor " + successor + " of " + project + " is not ready");
+                }
+                if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+                    if (!successor.equals(nextCandidate())) {
+                        throw new IllegalStateException("successor " + successor + " is not the next candidate of " + project);
+                    }
+                    return requeue(successor, timeoutMillis);
+                }
+                return handoffNode(successor, timeoutMillis);
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(project + "-" + projectNode + " hand off to " + successor + " error", e);
+            }
+        }
+    }
+
+    /**
+     * 主动让出工作权，不指定接替实例
+     * <p>
+     * EPHEMERAL_NODE模式删除持有的节点，所有备用实例（包括本实例）立即重新竞争；CANDIDATE_QUEUE模式重新排到队尾。
+     */
+    public void relinquish() {
+        synchronized (handoffLock) {
+            if (!active) {
+                return;
+            }
+            try {
+                if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+                    requeue(null, 0);
+                    return;
+                }
+                Stat stat = client.checkExists().forPath(projectFullPath);
+                deactivate();
+                if (null != stat && ephemeralOwnerIsCurrentConnection(stat)) {
+                    try {
+                        client.delete().withVersion(stat.getVersion()).forPath(projectFullPath);
+                    } catch (Exception e) {
+                        restore();
+                        throw e;
+                    }
+                    logger.info(project + "-" + projectNode + ": relinquish " + projectFullPath);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(project + "-" + projectNode + " relinquish error", e);
+            }
+        }
+    }
+
+    private boolean handoffNode(String successor, long timeoutMillis) throws Exception {
+        Stat stat = client.checkExists().forPath(projectFullPath);
+        if (null == stat || !ephemeralOwnerIsCurrentConnection(stat)) {
+            throw new IllegalStateException(projectFullPath + " is not owned by " + projectNode);
+        }
+        deactivate();
+        try {
+            client.createContainers(root + "-handoff");
+            client.inTransaction()
+                    .delete().withVersion(stat.getVersion()).forPath(projectFullPath)
+                    .and()
+                    .create().withMode(CreateMode.EPHEMERAL).forPath(handoffPath, successor.getBytes())
+                    .and()
+                    .commit();
+        } catch (Exception e) {
+            restore();
+            throw e;
+        }
+        logger.info(project + "-" + projectNode + ": hand off " + projectFullPath + " to " + successor);
+        return awaitTakeover(successor, timeoutMillis) && isOwner(successor);
+    }
+
+    /**
+     * 等待接替实例删除交接标记，超时后本实例删除标记
+     *
+     * @return 标记是否在超时前被删除
+     */
+    private boolean awaitTakeover(String successor, long timeoutMillis) throws Exception {
+        final CountDownLatch taken = new CountDownLatch(1);
+        if (null == client.checkExists().usingWatcher(new CuratorWatcher() {
+            public void process(WatchedEvent event) throws Exception {
+                taken.countDown();
+            }
+        }).forPath(handoffPath)) {
+            return true;
+        }
+        if (taken.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        logger.warn(project + "-" + projectNode + ": " + successor + " does not take over in " + timeoutMillis + "ms, cancel handoff");
+        try {
+            client.delete().forPath(handoffPath);
+            return false;
+        } catch (KeeperException.NoNodeException e) {
+            //超时的同时接替实例删除了标记
+            logger.debug("handoff node is removed");
+            return true;
+        }
+    }
+
+    /**
+     * 交接或让出的写入失败后，按节点的实际归属恢复工作或重新参与选举，避免本实例持有节点却不工作
+     */
+    private void restore() {
+        logger.warn(project + "-" + projectNode + ": hand off failed, check owner again");
+        reconcile();
+    }
+
+    /**
+     * @return CANDIDATE_QUEUE模式下排在本实例后一位的候选实例，没有时返回null
+     */
+    private String nextCandidate() {
+        try {
+            List<String> candidates = client.getChildren().forPath(candidatesPath);
+            Collections.sort(candidates);
+            int index = candidates.indexOf(candidatePath.substring(candidatePath.lastIndexOf('/') + 1));
+            if (index < 0 || index + 1 >= candidates.size()) {
+                return null;
+            }
+            return new String(client.getData().forPath(candidatesPath + "/" + candidates.get(index + 1)));
+        } catch (Exception e) {
+            throw new IllegalStateException("list candidates of " + project + " error", e);
+        }
+    }
+
+    /**
+     * 在一个事务中删除本实例的候选节点并在队尾重新注册，下一位候选实例收到删除通知后开始工作
+     *
+     * @param successor     指定的接替实例，不为null时同时写入交接标记并等待其删除
+     * @param timeoutMillis 等待接替实例开始工作的最长时间
+     * @return 接替实例是否在超时前开始工作，没有指定接替实例时返回true
+     */
+    private boolean requeue(String successor, long timeoutMillis) throws Exception {
+        String previous = candidatePath;
+        deactivate();
+        Collection<CuratorTransactionResult> results;
+        try {
+            if (null == successor) {
+                results = client.inTransaction()
+                        .delete().forPath(previous)
+                        .and()
+                        .create().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                        .forPath(candidatesPath + "/" + CANDIDATE_PREFIX, projectNode.getBytes())
+                        .and()
+                        .commit();
+            } else {
+                client.createContainers(root + "-handoff");
+                results = client.inTransaction()
+                        .delete().forPath(previous)
+                        .and()
+                        .create().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                        .forPath(candidatesPath + "/" + CANDIDATE_PREFIX, projectNode.getBytes())
+                        .and()
+                        .create().withMode(CreateMode.EPHEMERAL).forPath(handoffPath, successor.getBytes())
+                        .and()
+                        .commit();
+            }
+        } catch (Exception e) {
+            restore();
+            throw e;
+        }
+        for (CuratorTransactionResult result : results) {
+            if (result.getType() == OperationType.CREATE && result.getForPath().startsWith(candidatesPath)) {
+                candidatePath = result.getResultPath();
+            }
+        }
+        logger.info(project + "-" + projectNode + ": requeue candidate " + previous + " as " + candidatePath);
+        checkQueue();
+        return null == successor || awaitTakeover(successor, timeoutMillis) && isOwner(successor);
+    }
+
+    /**
+     * 交接标记被删除后确认工作实例是指定的接替实例：EPHEMERAL_NODE模式读取节点数据，CANDIDATE_QUEUE模式读取排在第一位的候选节点。
+     * 标记删除时工作实例可能已经再次切换，此时认为交接失败。
+     */
+    private boolean isOwner(String successor) throws Exception {
+        String owner;
+        try {
+            if (electionMode == ElectionMode.CANDIDATE_QUEUE) {
+                List<String> candidates = client.getChildren().forPath(candidatesPath);
+                if (candidates.isEmpty()) {
+                    return false;
+                }
+                Collections.sort(candidates);
+                owner = new String(client.getData().forPath(candidatesPath + "/" + candidates.get(0)));
+            } else {
+                owner = new String(client.getData().forPath(projectFullPath));
+            }
+        } catch (KeeperException.NoNodeException e) {
+            owner = null;
+        }
+        if (!successor.equals(owner)) {
+            logger.warn(project + "-" + projectNode + ": " + successor + " removed handoff node, but owner is " + owner);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 监听其他实例创建的节点，节点已经不存在时重新创建
+     */
+    private void watchOwner() {
+        if (!ownerWatched.compareAndSet(false, true)) {
+            return;
+        }
+        resyncs.incrementAndGet();
+        try {
+            Stat stat = client.checkExists().usingWatcher(ownerWatcher).forPath(projectFullPath);
+            if (null == stat) {
+                //节点在设置监听前已被删除，exists留下的监听会在节点再次创建时通知
+                logger.info(project + "-" + projectNode + ": node " + projectFullPath + " removed before watching");
+                createNode(CreateMode.EPHEMERAL);
+            }
+        } catch (Exception e) {
+            ownerWatched.set(false);
+            logger.error(project + "-" + projectNode + ": watch " + projectFullPath + " error", e);
+        }
+    }
+
+    private void markRemoved() {
+        if (0 == removedAt) {
+            removedAt = System.nanoTime();
+        }
+    }
+
+    private void markConfirmed() {
+        if (0 == confirmedAt) {
+            confirmedAt = System.nanoTime();
+        }
+    }
+
+    private void markLost() {
+        if (0 == lostAt) {
+            lostAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * 激活时把本次切换的各阶段耗时计入直方图，并清除时间点
+     */
+    private void recordTakeover(long now) {
+        if (removedAt != 0 && createAt != 0) {
+            reactionHistogram.record(createAt - removedAt);
+        }
+        if (createAt != 0 && confirmedAt != 0) {
+            createHistogram.record(confirmedAt - createAt);
+        }
+        if (confirmedAt != 0) {
+            activateHistogram.record(now - confirmedAt);
+        }
+        if (removedAt != 0) {
+            takeoverHistogram.record(now - removedAt);
+        }
+        if (lostAt != 0) {
+            recoveryHistogram.record(now - lostAt);
+        }
+        removedAt = 0;
+        createAt = 0;
+        confirmedAt = 0;
+        lostAt = 0;
+    }
+
+    /**
+     * 切换耗时的直方图，按阶段命名，可直接输出或导出到监控系统：
+     * reaction（发现删除到发起创建）、create（发起创建到确认持有）、activate（确认持有到激活完成）、
+     * takeover（发现删除到激活完成）、recovery（连接断开到重新激活）
+     */
+    public Map<String, LatencyHistogram> getMetrics() {
+        Map<String, LatencyHistogram> metrics = new LinkedHashMap<String, LatencyHistogram>();
+        metrics.put("reaction", reactionHistogram);
+        metrics.put("create", createHistogram);
+        metrics.put("activate", activateHistogram);
+        metrics.put("takeover", takeoverHistogram);
+        metrics.put("recovery", recoveryHistogram);
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * @return 竞争创建节点失败（节点已被其他实例创建）的次数
+     */
+    public long getFailedCreateCount() {
+        return failedCreates.get();
+    }
+
+    /**
+     * @return 绕过NodeCache直接读取节点重新判断归属的次数
+     */
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+
+    public ElectionMode getElectionMode() {
+        return electionMode;
+    }
+
+    /**
+     * 设置选举方式，需在init之前调用。同一个project的所有实例必须使用相同的选举方式。
+     */
+    public void setElectionMode(ElectionMode electionMode) {
+        this.electionMode = electionMode;
+    }
+
+    public boolean isResilient() {
+        return resilient;
+    }
+
+    /**
+     * 设置连接断开时是否保留会话，需在init之前调用
+     */
+    public void setResilient(boolean resilient) {
+        this.resilient = resilient;
     }
 
     private boolean ephemeralOwnerIsCurrentConnection(Stat stat) {
@@ -257,28 +1199,18 @@ public class AutoSwitch {
     }
 
     private void watch() {
-        pathChildrenCache = new PathChildrenCache(this.client, root, true);
-        boolean start = false;
+        nodeCache = new NodeCache(this.client, projectFullPath);
+        ProjectNodeListener listener = new ProjectNodeListener();
+        nodeCache.getListenable().addListener(listener);
         try {
-            //创建本地缓存，并监听节点事件
-            pathChildrenCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
-            start = true;
+            //创建本地缓存，并同步读取节点当前状态
+            nodeCache.start(true);
+            logger.debug(project + "-" + projectNode + ": start listener.");
+            //初始化时读取的状态不会触发nodeChanged，需主动检查一次
+            listener.nodeChanged();
         } catch (Exception e) {
-            logger.error(project + "-" + projectNode + ": pathChildrenCache start after initialized error", e);
-        } finally {
-            if (!start) {
-                try {
-                    pathChildrenCache.start();
-                    pathChildrenCache.getListenable().addListener(new PathChildCacheListenerAdapter());
-                } catch (Exception e) {
-                    logger.error(project + "-" + projectNode + ": pathChildrenCache start error", e);
-                }
-            } else {
-                logger.debug(project + "-" + projectNode + ": start listener.");
-                pathChildrenCache.getListenable().addListener(new PathChildCacheListenerAdapter());
-            }
+            logger.error(project + "-" + projectNode + ": nodeCache start error", e);
         }
     }
 
 }
-
@@ -0,0 +1,22 @@
+package win.hgfdodo.framework.utils;
+
+/**
+ * AutoSwitch工作状态变化的回调
+ * <p>
+ * 在进程的生命周期内可以多次触发：每次本实例成为工作实例时调用activated，失去工作权时调用deactivated。
+ * 使用addListener(listener, executor)注册时回调在指定的线程池中执行，不会阻塞zookeeper的事件线程。
+ * 使用addListener(listener)注册时回调在触发状态变化的线程中同步执行（zookeeper事件线程、连接状态线程或调用handoff的线程），
+ * 且持有AutoSwitch的锁，回调中不能有耗时或阻塞的操作，否则会推迟后续的状态变化。
+ */
+public interface AutoSwitchListener {
+
+    /**
+     * 本实例成为工作实例
+     */
+    void activated(AutoSwitch autoSwitch);
+
+    /**
+     * 本实例失去工作权，包括连接断开、节点被其他实例持有等情况
+     */
+    void deactivated(AutoSwitch autoSwitch);
+}
@@ -0,0 +1,180 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 一个进程内多个project的自动切换共用一个zookeeper连接
+ * <p>
+ * 每个project对应一个AutoSwitch，所有AutoSwitch共用同一个会话，只监听各自的节点；
+ * zookeeper客户端按路径分发节点事件，连接状态变化由manager统一分发给各project。
+ * 各project的AutoSwitchListener在共用的单线程中回调，不阻塞zookeeper事件线程，也不需要为每个project阻塞一个线程。
+ * <p>
+ * 共用连接时不能在连接断开时关闭连接，所有project使用resilient模式。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接、root和本进程的节点名实例化，调用init
+ * 2. 按project调用register，返回的AutoSwitch可通过whenActive等待成为工作实例
+ * 3. 退出前调用close，zookeeper连接由调用方关闭
+ */
+public class AutoSwitchManager {
+    private final static Logger logger = LoggerFactory.getLogger(AutoSwitchManager.class);
+
+    private CuratorFramework client;
+
+    /**
+     * 自动切换在zookeeper中的root路径
+     */
+    private String root = "/utils/autoswitch";
+
+    /**
+     * 本进程在各project中的节点名
+     */
+    private String projectNode;
+
+    /**
+     * 所有project共用的回调线程
+     */
+    private ExecutorService dispatcher;
+
+    private final Map<String, AutoSwitch> autoSwitches = new ConcurrentHashMap<String, AutoSwitch>();
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            for (AutoSwitch autoSwitch : autoSwitches.values()) {
+                autoSwitch.connectionStateChanged(newState);
+            }
+        }
+    };
+
+    /**
+     * 使用默认root创建
+     *
+     * @param client      使用curator框架的zookeeper连接
+     * @param projectNode 本进程在各project中的节点名
+     */
+    public AutoSwitchManager(CuratorFramework client, String projectNode) {
+        this.client = client;
+        this.projectNode = projectNode;
+    }
+
+    /**
+     * @param client      使用curator框架的zookeeper连接
+     * @param root        自动切换在zookeeper中的root路径
+     * @param projectNode 本进程在各project中的节点名
+     */
+    public AutoSwitchManager(CuratorFramework client, String root, String projectNode) {
+        this.client = client;
+        this.root = root;
+        this.projectNode = projectNode;
+    }
+
+    public void init() {
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+        dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AutoSwitchManager-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 退出所有project的选举并关闭回调线程，zookeeper连接由调用方关闭
+     */
+    public void close() {
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        for (AutoSwitch autoSwitch : autoSwitches.values()) {
+            autoSwitch.close();
+        }
+        autoSwitches.clear();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    /**
+     * 使用EPHEMERAL_NODE方式加入project的选举
+     */
+    public AutoSwitch register(String project, AutoSwitchListener listener) {
+        return register(project, AutoSwitch.ElectionMode.EPHEMERAL_NODE, listener);
+    }
+
+    /**
+     * 加入project的选举，不阻塞调用线程。已加入时返回已有的AutoSwitch。需在init之后调用
+     *
+     * @param project  工程名
+     * @param mode     选举方式，同一project的所有实例必须一致
+     * @param listener 工作状态监听者，在共用的回调线程中执行，可以为null
+     */
+    public AutoSwitch register(String project, AutoSwitch.ElectionMode mode, AutoSwitchListener listener) {
+        if (project == null || project.isEmpty() || project.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("illegal project name: " + project);
+        }
+        if (dispatcher == null) {
+            throw new IllegalStateException("auto switch manager of " + projectNode + " is not initialized, call init before register");
+        }
+        synchronized (autoSwitches) {
+            AutoSwitch autoSwitch = autoSwitches.get(project);
+            if (autoSwitch == null) {
+                autoSwitch = new AutoSwitch(client, root, project, projectNode);
+                autoSwitch.setElectionMode(mode);
+                autoSwitch.setResilient(true);
+                autoSwitch.setManaged(true);
+                if (listener != null) {
+                    autoSwitch.getListenable().addListener(listener, dispatcher);
+                }
+                autoSwitches.put(project, autoSwitch);
+                autoSwitch.start();
+                logger.info("register project {} as {} by {}", project, projectNode, mode);
+            }
+            return autoSwitch;
+        }
+    }
+
+    /**
+     * 退出project的选举，其他实例立即接替
+     */
+    public void unregister(String project) {
+        AutoSwitch autoSwitch = autoSwitches.remove(project);
+        if (autoSwitch != null) {
+            autoSwitch.close();
+        }
+    }
+
+    /**
+     * @return project对应的AutoSwitch，未加入时返回null
+     */
+    public AutoSwitch get(String project) {
+        return autoSwitches.get(project);
+    }
+
+    /**
+     * @return 已加入的project
+     */
+    public Map<String, AutoSwitch> getAutoSwitches() {
+        return Collections.unmodifiableMap(autoSwitches);
+    }
+
+    /**
+     * @return 所有project共用的回调线程，可用于注册其他监听者
+     */
+    public ExecutorService getDispatcher() {
+        return dispatcher;
+    }
+}
@@ -0,0 +1,142 @@
+package win.hgfdodo.framework.utils;
+
+import java.util.Arrays;
+
+/**
+ * 62进制编码，字符顺序为0-9、a-z、A-Z
+ * <p>
+ * 编码时从低位到高位，从右向左直接写入字符数组，不需要反复移动已写入的字符。
+ */
+public final class Base62 {
+
+    public final static int RADIX = 62;
+    /**
+     * long的最大值编码后的长度
+     */
+    public final static int MAX_LENGTH = 11;
+
+    private final static char[] symbols = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z'};
+
+    /**
+     * 每个线程复用的编码缓冲区
+     */
+    private final static ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_LENGTH];
+        }
+    };
+
+    private Base62() {
+    }
+
+    /**
+     * @param value 非负数
+     * @return value编码后的位数，0的位数为0
+     */
+    public static int length(long value) {
+        checkValue(value);
+        int length = 0;
+        while (value > 0) {
+            value /= RADIX;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 编码为字符串，不足minLength位时在前面补0
+     *
+     * @param value     非负数
+     * @param minLength 最小长度，为0时不补位，此时0编码为空字符串
+     */
+    public static String toString(long value, int minLength) {
+        checkValue(value);
+        char[] buffer = buffers.get();
+        int pos = MAX_LENGTH;
+        while (value > 0) {
+            buffer[--pos] = symbols[(int) (value % RADIX)];
+            value /= RADIX;
+        }
+        int length = MAX_LENGTH - pos;
+        if (minLength > MAX_LENGTH) {
+            //补位长度超过缓冲区时，单独补0
+            char[] padded = new char[minLength];
+            Arrays.fill(padded, 0, minLength - length, symbols[0]);
+            System.arraycopy(buffer, pos, padded, minLength - length, length);
+            return new String(padded);
+        }
+        while (pos > MAX_LENGTH - minLength) {
+            buffer[--pos] = symbols[0];
+        }
+        return new String(buffer, pos, MAX_LENGTH - pos);
+    }
+
+    /**
+     * 定长编码，写入dst[offset, offset + length)，不足位时在前面补0
+     *
+     * @return 写入后的下一个位置
+     * @throws IllegalArgumentException value编码后超过length位
+     */
+    public static int encode(long value, int length, char[] dst, int offset) {
+        checkValue(value);
+        int end = offset + length;
+        for (int i = end - 1; i >= offset; i--) {
+            dst[i] = symbols[(int) (value % RADIX)];
+            value /= RADIX;
+        }
+        if (value > 0) {
+            throw new IllegalArgumentException("value is too large for " + length + " symbols");
+        }
+        return end;
+    }
+
+    /**
+     * 定长编码为ASCII字节，写入dst[offset, offset + length)，不足位时在前面补0
+     *
+     * @return 写入后的下一个位置
+     * @throws IllegalArgumentException value编码后超过length位
+     */
+    public static int encode(long value, int length, byte[] dst, int offset) {
+        checkValue(value);
+        int end = offset + length;
+        for (int i = end - 1; i >= offset; i--) {
+            dst[i] = (byte) symbols[(int) (value % RADIX)];
+            value /= RADIX;
+        }
+        if (value > 0) {
+            throw new IllegalArgumentException("value is too large for " + length + " symbols");
+        }
+        return end;
+    }
+
+    /**
+     * 解码，允许前导0
+     */
+    public static long decode(CharSequence symbol) {
+        long value = 0;
+        for (int i = 0; i < symbol.length(); i++) {
+            char c = symbol.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A' + 36;
+            } else {
+                throw new IllegalArgumentException("illegal symbol '" + c + "' in " + symbol);
+            }
+            value = value * RADIX + digit;
+        }
+        return value;
+    }
+
+    private static void checkValue(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value " + value + " can not be encoded");
+        }
+    }
+}
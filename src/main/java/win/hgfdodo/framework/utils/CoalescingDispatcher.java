@@ -0,0 +1,346 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NodeCache、PathChildrenCache监听者的合并分发器
+ * <p>
+ * curator在一个事件线程中依次回调所有监听者，监听者中的阻塞操作会推迟进程内其他节点的事件，连续修改时每次修改都回调一次。
+ * 分发器在事件线程中只记录每个路径的最新状态，由自己的线程回调监听者：
+ * 同一路径第一次变化后等待windowMillis，窗口内的后续变化只替换最新状态，窗口结束后回调一次。
+ * <p>
+ * 回调在threads个单线程执行器中执行，同一路径固定在同一个执行器中，保证同一路径按顺序回调。
+ * 每个执行器的队列最多queueCapacity个任务。队列满时不阻塞任何线程：路径留在待回调状态，
+ * 过retryMillis后由定时线程重新提交，期间的变化继续合并。因此一个执行器上慢的监听者只推迟该执行器上的路径，
+ * 不影响其他执行器和curator事件线程；同一路径在回调前最多只有一个待执行的任务，积压的任务数不超过变化的路径数。
+ * <p>
+ * 使用说明：
+ * 1. 实例化后按需调用setWindowMillis、setThreads、setQueueCapacity，调用init
+ * 2. 使用listen把NodeCache或PathChildrenCache的变化分发给NodeChangeListener
+ * 3. 退出前调用close
+ */
+public class CoalescingDispatcher {
+    private final static Logger logger = LoggerFactory.getLogger(CoalescingDispatcher.class);
+
+    private String name;
+
+    /**
+     * 合并窗口，0表示不等待，仍然合并回调前的多次变化
+     */
+    private long windowMillis = 100;
+
+    private int threads = 1;
+
+    private int queueCapacity = 1024;
+
+    /**
+     * 执行器队列满时重新提交的间隔
+     */
+    private long retryMillis = 10;
+
+    private ScheduledExecutorService timer;
+
+    private ThreadPoolExecutor[] executors;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+
+    /**
+     * 从第一次变化到回调开始的延迟
+     */
+    private final LatencyHistogram delay = new LatencyHistogram();
+
+    /**
+     * 等待回调的最新状态
+     */
+    private static class Pending {
+        final ChildData data;
+        final long since;
+
+        Pending(ChildData data, long since) {
+            this.data = data;
+            this.since = since;
+        }
+    }
+
+    /**
+     * 一个监听者及其各路径等待回调的状态
+     */
+    private class Registration {
+        final NodeChangeListener listener;
+        final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+        Registration(NodeChangeListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * 在curator事件线程中执行：记录最新状态，路径没有待执行的任务时安排一次回调
+         */
+        void submit(final String path, ChildData data) {
+            received.incrementAndGet();
+            Pending previous = pending.put(path, new Pending(data, firstSince(path)));
+            if (previous != null) {
+                //已有待执行的任务，回调时取最新状态
+                return;
+            }
+            final Runnable task = new Runnable() {
+                public void run() {
+                    dispatch(path);
+                }
+            };
+            if (windowMillis > 0) {
+                schedule(path, task, windowMillis);
+            } else {
+                enqueue(path, task);
+            }
+        }
+
+        private void schedule(final String path, final Runnable task, long delayMillis) {
+            try {
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        enqueue(path, task);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                logger.debug("dispatcher {} is closed, drop change of {}", name, path);
+            }
+        }
+
+        /**
+         * 不阻塞地提交到路径所在的执行器，队列满时稍后重新提交，路径仍在pending中，期间的变化继续合并
+         */
+        private void enqueue(String path, Runnable task) {
+            ThreadPoolExecutor executor = executorOf(path);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (executor.isShutdown()) {
+                    logger.debug("dispatcher {} is closed, drop change of {}", name, path);
+                    return;
+                }
+                deferred.incrementAndGet();
+                schedule(path, task, retryMillis);
+            }
+        }
+
+        /**
+         * 合并时保留第一次变化的时间，用于统计延迟
+         */
+        private long firstSince(String path) {
+            Pending current = pending.get(path);
+            return current == null ? System.nanoTime() : current.since;
+        }
+
+        void dispatch(String path) {
+            Pending latest = pending.remove(path);
+            if (latest == null) {
+                return;
+            }
+            dispatched.incrementAndGet();
+            delay.record(System.nanoTime() - latest.since);
+            try {
+                listener.nodeChanged(path, latest.data);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                logger.error("dispatcher {} notify change of {} error!", name, path, e);
+            }
+        }
+    }
+
+    public CoalescingDispatcher(String name) {
+        this.name = name;
+    }
+
+    public void init() {
+        final AtomicInteger index = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CoalescingDispatcher-" + name + "-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        //队列满时抛出RejectedExecutionException，由enqueue稍后重新提交
+        executors = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            executors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * 停止分发，已安排但未执行的回调丢弃
+     */
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (executors != null) {
+            for (ThreadPoolExecutor executor : executors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 把NodeCache的变化分发给listener，回调的数据取自NodeCache，不再读取zookeeper
+     *
+     * @param path NodeCache监听的路径
+     * @return 添加到NodeCache的监听者，可用于移除
+     */
+    public NodeCacheListener listen(final NodeCache nodeCache, final String path, NodeChangeListener listener) {
+        final Registration registration = new Registration(listener);
+        NodeCacheListener nodeCacheListener = new NodeCacheListener() {
+            public void nodeChanged() throws Exception {
+                registration.submit(path, nodeCache.getCurrentData());
+            }
+        };
+        nodeCache.getListenable().addListener(nodeCacheListener);
+        return nodeCacheListener;
+    }
+
+    /**
+     * 把PathChildrenCache子节点的新增、修改、删除分发给listener，其他事件不分发
+     *
+     * @return 添加到PathChildrenCache的监听者，可用于移除
+     */
+    public PathChildrenCacheListener listen(PathChildrenCache pathChildrenCache, NodeChangeListener listener) {
+        final Registration registration = new Registration(listener);
+        PathChildrenCacheListener pathChildrenCacheListener = new PathChildrenCacheListener() {
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+                switch (event.getType()) {
+                    case CHILD_ADDED:
+                    case CHILD_UPDATED:
+                        registration.submit(event.getData().getPath(), event.getData());
+                        break;
+                    case CHILD_REMOVED:
+                        registration.submit(event.getData().getPath(), null);
+                        break;
+                    default:
+                        logger.debug("dispatcher {} ignore event {}", name, event.getType());
+                }
+            }
+        };
+        pathChildrenCache.getListenable().addListener(pathChildrenCacheListener);
+        return pathChildrenCacheListener;
+    }
+
+    private ThreadPoolExecutor executorOf(String path) {
+        return executors[(path.hashCode() & Integer.MAX_VALUE) % executors.length];
+    }
+
+    /**
+     * 设置合并窗口，需在init之前调用
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * 设置回调线程数，需在init之前调用
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * 设置每个回调线程的队列长度，需在init之前调用
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queue capacity must be positive: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * 设置执行器队列满时重新提交的间隔，需在init之前调用
+     */
+    public void setRetryMillis(long retryMillis) {
+        if (retryMillis < 1) {
+            throw new IllegalArgumentException("retry millis must be positive: " + retryMillis);
+        }
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * @return 所有回调线程队列中等待执行的任务数
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            depth += executor.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return 收到的变化数
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return 回调监听者的次数
+     */
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return 监听者抛出异常的次数
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return 执行器队列满、推迟提交的次数
+     */
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    /**
+     * @return 被合并掉的变化占收到的变化的比例
+     */
+    public double getMergeRatio() {
+        long r = received.get();
+        return r == 0 ? 0 : 1 - (double) dispatched.get() / r;
+    }
+
+    /**
+     * @return 从第一次变化到回调开始的延迟
+     */
+    public LatencyHistogram getDelayHistogram() {
+        return delay;
+    }
+}
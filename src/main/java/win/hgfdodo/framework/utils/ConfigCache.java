@@ -0,0 +1,260 @@
+package win.hgfdodo.framework.utils;
+
+import com.google.common.base.Function;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 配置子树的本地缓存
+ * <p>
+ * 使用TreeCache监听root下的所有节点，每个节点的数据和Stat保存为不可变的快照Entry，变化时整体替换该路径的快照。
+ * 读取只是一次ConcurrentHashMap查找，不加锁也不创建对象，适合每个请求都读取大量配置的场景；
+ * 读到的快照内容不会再变化，同一个Entry中的数据和Stat总是一致的。
+ * <p>
+ * 快照的数据和Stat来自TreeCache事件，发布快照和回调监听者都不再读取zookeeper。
+ * 快照按mzxid排序，不会被较旧的数据覆盖；每次变化分配一个递增的generation，可用于判断本地配置是否变化过。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接和配置的root路径实例化，添加监听者，调用init，init返回时已加载全部配置
+ * 2. 使用get、getString读取配置，路径为完整路径
+ * 3. 退出前调用close
+ */
+public class ConfigCache {
+    private final static Logger logger = LoggerFactory.getLogger(ConfigCache.class);
+
+    private CuratorFramework client;
+
+    /**
+     * 缓存的子树root路径
+     */
+    private String root;
+
+    private TreeCache treeCache;
+
+    /**
+     * 等待首次加载完成的时间
+     */
+    private long initTimeoutMillis = 10000;
+
+    /**
+     * 路径到快照的映射，每次变化替换整个Entry
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    private final ListenerContainer<ConfigCacheListener> listeners = new ListenerContainer<ConfigCacheListener>();
+
+    /**
+     * 一个路径某一时刻的配置，创建后不再修改
+     */
+    public final static class Entry {
+        private final String path;
+        private final byte[] data;
+        private final Stat stat;
+        private final long generation;
+
+        private Entry(ChildData childData, long generation) {
+            this.path = childData.getPath();
+            this.data = childData.getData();
+            this.stat = childData.getStat();
+            this.generation = generation;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return 节点数据，为了不复制直接返回缓存的数组，调用方不能修改
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return 节点的Stat，调用方不能修改
+         */
+        public Stat getStat() {
+            return stat;
+        }
+
+        /**
+         * @return 节点的数据版本
+         */
+        public int getVersion() {
+            return stat.getVersion();
+        }
+
+        /**
+         * @return 本地缓存发布该快照时的generation
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        @Override
+        public String toString() {
+            return path + "@" + stat.getVersion() + "=" + (data == null ? null : new String(data));
+        }
+    }
+
+    private final TreeCacheListener treeCacheListener = new TreeCacheListener() {
+        public void childEvent(CuratorFramework client, TreeCacheEvent event) throws Exception {
+            switch (event.getType()) {
+                case NODE_ADDED:
+                case NODE_UPDATED:
+                    update(event.getData());
+                    break;
+                case NODE_REMOVED:
+                    remove(event.getData());
+                    break;
+                case INITIALIZED:
+                    logger.info("config cache {} initialized with {} entries", root, entries.size());
+                    initialized.countDown();
+                    break;
+                default:
+                    //连接断开期间继续使用已缓存的配置，重连后TreeCache重新同步
+                    logger.info("config cache {} connection state {}", root, event.getType());
+            }
+        }
+    };
+
+    /**
+     * @param client 使用curator框架的zookeeper连接
+     * @param root   缓存的子树root路径
+     */
+    public ConfigCache(CuratorFramework client, String root) {
+        this.client = client;
+        this.root = root;
+    }
+
+    public void init() {
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        treeCache = TreeCache.newBuilder(client, root).setCacheData(true).build();
+        treeCache.getListenable().addListener(treeCacheListener);
+        try {
+            treeCache.start();
+            if (!initialized.await(initTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("load config of " + root + " timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("load config of " + root + " interrupted", e);
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("start config cache of " + root + " error", e);
+        }
+    }
+
+    public void close() {
+        if (treeCache != null) {
+            treeCache.close();
+        }
+    }
+
+    /**
+     * 在TreeCache事件线程中执行，同一路径的快照只被新的数据替换
+     */
+    private void update(ChildData childData) {
+        if (childData == null || childData.getStat() == null) {
+            return;
+        }
+        final Entry previous = entries.get(childData.getPath());
+        if (previous != null && previous.stat.getMzxid() >= childData.getStat().getMzxid()) {
+            logger.debug("ignore stale config {} of version {}", childData.getPath(), childData.getStat().getVersion());
+            return;
+        }
+        final Entry current = new Entry(childData, generation.incrementAndGet());
+        entries.put(current.path, current);
+        listeners.forEach(new Function<ConfigCacheListener, Void>() {
+            public Void apply(ConfigCacheListener listener) {
+                listener.changed(ConfigCache.this, previous, current);
+                return null;
+            }
+        });
+    }
+
+    private void remove(ChildData childData) {
+        if (childData == null) {
+            return;
+        }
+        final Entry previous = entries.remove(childData.getPath());
+        if (previous == null) {
+            return;
+        }
+        generation.incrementAndGet();
+        listeners.forEach(new Function<ConfigCacheListener, Void>() {
+            public Void apply(ConfigCacheListener listener) {
+                listener.removed(ConfigCache.this, previous);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param path 完整路径
+     * @return 路径当前的快照，不存在时返回null
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @param path 完整路径
+     * @return 路径当前的数据，不存在或没有数据时返回defaultValue
+     */
+    public String getString(String path, String defaultValue) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.data == null) {
+            return defaultValue;
+        }
+        return new String(entry.data);
+    }
+
+    /**
+     * @return 所有路径的快照，只读视图，随缓存变化
+     */
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * @return 本地缓存的变化次数，没有变化时不变
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public Listenable<ConfigCacheListener> getListenable() {
+        return listeners;
+    }
+
+    /**
+     * 设置等待首次加载完成的时间，需在init之前调用
+     */
+    public void setInitTimeoutMillis(long initTimeoutMillis) {
+        this.initTimeoutMillis = initTimeoutMillis;
+    }
+}
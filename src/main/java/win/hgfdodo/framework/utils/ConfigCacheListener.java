@@ -0,0 +1,24 @@
+package win.hgfdodo.framework.utils;
+
+/**
+ * ConfigCache配置变化的回调
+ * <p>
+ * 回调时新的快照已经发布，参数中的数据和Stat来自缓存，不需要再读取zookeeper。
+ */
+public interface ConfigCacheListener {
+
+    /**
+     * 配置新增或修改
+     *
+     * @param previous 修改前的快照，新增时为null
+     * @param current  修改后的快照
+     */
+    void changed(ConfigCache cache, ConfigCache.Entry previous, ConfigCache.Entry current);
+
+    /**
+     * 配置删除
+     *
+     * @param previous 删除前的快照
+     */
+    void removed(ConfigCache cache, ConfigCache.Entry previous);
+}
@@ -0,0 +1,460 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群范围的固定窗口配额限流
+ * <p>
+ * 时间按windowMillis分成窗口，每个窗口整个集群共有permitsPerSecond * windowMillis / 1000个许可，
+ * 已分出的许可数记录在root/name节点中（数据为"窗口号:本窗口已分出数:下一窗口已分出数"），
+ * 各节点按版本号比较并设置（与IdGenerator的COMPARE_AND_SET方式相同）领取一份配额。
+ * 领到的配额放在本地，tryAcquire只做一次CAS，不访问zookeeper；本地配额用到剩余四分之一时在后台领取下一份。
+ * <p>
+ * 窗口的最后四分之一时间内在后台预先领取下一个窗口的一份配额，窗口切换时直接换上，不等待zookeeper；
+ * 窗口切换后才执行的后台领取也先换上预先领取的配额，再判断是否需要领取，预先领到的配额不会被覆盖。
+ * 没有预先领到时（如请求稀疏的节点），上一个窗口剩余的配额在新窗口的配额领到前继续使用。
+ * 时钟落后的节点发现zookeeper中的窗口比本地新时，按zookeeper中的窗口领取。
+ * <p>
+ * 每份配额的大小按本节点上一个窗口的请求量调整：请求多的节点每次领得多，领取次数不随请求量增长。
+ * 单份配额不超过窗口总量的maxShare，它同时是误差上限：上一个窗口剩余的配额和时钟偏差使一个节点最多在一个窗口里多用一份配额，
+ * 每个节点的误差不超过maxShare * 窗口总量。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接、root、限流名和每秒许可数实例化，按需调整窗口和maxShare，调用init
+ * 2. 每个请求调用tryAcquire，返回false时拒绝请求
+ */
+public class DistributedRateLimiter {
+    private final static Logger logger = LoggerFactory.getLogger(DistributedRateLimiter.class);
+
+    /**
+     * 本地状态的高32位为窗口号，低32位为剩余许可数
+     */
+    private final static long TOKEN_MASK = 0xffffffffL;
+
+    /**
+     * 每个窗口期望领取的次数，用于由上一个窗口的请求量计算每份配额的大小
+     */
+    private final static int CLAIMS_PER_WINDOW = 8;
+
+    private CuratorFramework client;
+
+    /**
+     * 限流在zookeeper中的root路径
+     */
+    private String root = "/utils/ratelimiter";
+
+    private String name;
+
+    private String path;
+
+    /**
+     * 整个集群每秒允许的请求数
+     */
+    private long permitsPerSecond;
+
+    /**
+     * 窗口长度，单位毫秒
+     */
+    private long windowMillis = 1000;
+
+    /**
+     * 单份配额占窗口总量的最大比例，也是每个节点的误差上限
+     */
+    private double maxShare = 0.05;
+
+    /**
+     * 单份配额的最小值
+     */
+    private int minAllotment = 1;
+
+    private int maxCasRetries = 100;
+
+    /**
+     * 本地配额，见TOKEN_MASK
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * 预先领取的下一个窗口的配额，格式同state，窗口切换时换上
+     */
+    private final AtomicLong prefetched = new AtomicLong();
+
+    /**
+     * 已预先领取过的窗口，每个窗口只预先领取一次
+     */
+    private volatile long prefetchWindow = -1;
+
+    /**
+     * 同一时刻只有一个后台领取任务
+     */
+    private final AtomicBoolean claiming = new AtomicBoolean(false);
+
+    /**
+     * 本窗口的请求数（包括被拒绝的），窗口切换时作为上一个窗口的请求量
+     */
+    private final LongAdder demand = new LongAdder();
+    private volatile long demandWindow = -1;
+    private volatile long lastDemand;
+
+    /**
+     * 已按上一个窗口的请求量调整过配额大小的窗口
+     */
+    private volatile long allotmentWindow = -1;
+
+    /**
+     * 本地配额低于该值时开始领取下一份
+     */
+    private volatile long lowWater;
+
+    private volatile int allotment;
+
+    /**
+     * 已领完总量的窗口，该窗口内不再访问zookeeper
+     */
+    private volatile long exhaustedWindow = -1;
+
+    private ExecutorService claimExecutor;
+    private boolean ownExecutor;
+
+    private final AtomicLong claims = new AtomicLong();
+    private final LongAdder denied = new LongAdder();
+
+    private final Runnable claimTask = new Runnable() {
+        public void run() {
+            try {
+                refill();
+            } catch (Exception e) {
+                logger.error("claim permits of {} error!", path, e);
+            } finally {
+                claiming.set(false);
+            }
+        }
+    };
+
+    /**
+     * @param client           使用curator框架的zookeeper连接
+     * @param root             限流在zookeeper中的root路径
+     * @param name             限流名，同一个限流的所有节点必须使用相同的name和permitsPerSecond
+     * @param permitsPerSecond 整个集群每秒允许的请求数
+     */
+    public DistributedRateLimiter(CuratorFramework client, String root, String name, long permitsPerSecond) {
+        this.client = client;
+        this.root = root;
+        this.name = name;
+        this.path = root + "/" + name;
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public void init() {
+        if (permitsPerSecond <= 0 || getWindowPermits() <= 0) {
+            throw new IllegalArgumentException("permits per window of " + name + " must be positive");
+        }
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        try {
+            if (null == client.checkExists().forPath(path)) {
+                client.create().creatingParentsIfNeeded().forPath(path, "0:0".getBytes());
+            }
+        } catch (KeeperException.NodeExistsException e) {
+            logger.debug("node {} exists", path);
+        } catch (Exception e) {
+            throw new IllegalStateException("create rate limiter node " + path + " error!", e);
+        }
+        allotment = Math.max(minAllotment, (int) Math.min(Integer.MAX_VALUE, getWindowPermits() / CLAIMS_PER_WINDOW / 4));
+        allotment = Math.min(allotment, maxAllotment());
+        if (claimExecutor == null) {
+            ownExecutor = true;
+            claimExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DistributedRateLimiter-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        claiming.set(true);
+        claimExecutor.submit(claimTask);
+    }
+
+    public void close() {
+        if (ownExecutor && claimExecutor != null) {
+            claimExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 获取一个许可，不阻塞
+     * <p>
+     * 只做本地CAS；窗口切换时换上预先领取的配额，没有时继续使用上一个窗口剩余的配额并触发后台领取；
+     * 本地配额用完时触发后台领取，本次返回false。
+     *
+     * @return 是否获得许可
+     */
+    public boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+        long window = now / windowMillis;
+        long label = window & TOKEN_MASK;
+        if (demandWindow != window) {
+            rollDemand(window);
+        }
+        demand.increment();
+        while (true) {
+            long s = state.get();
+            long tokens = s & TOKEN_MASK;
+            boolean current = (s >>> 32) == label;
+            if (!current) {
+                long p = prefetched.get();
+                if ((p >>> 32) == label && (p & TOKEN_MASK) > 0 && prefetched.compareAndSet(p, 0)) {
+                    //窗口切换，换上预先领取的配额
+                    add(state, window, p & TOKEN_MASK);
+                    continue;
+                }
+                if (exhaustedWindow != window) {
+                    claimAsync();
+                }
+                if ((s >>> 32) != ((window - 1) & TOKEN_MASK)) {
+                    tokens = 0;
+                }
+            }
+            //窗口将要结束且还未预先领取下一个窗口的配额，本窗口已领完时也需要预先领取
+            boolean prefetch = prefetchWindow != window + 1 && now % windowMillis >= windowMillis - prefetchMillis();
+            if (tokens == 0) {
+                if ((current && exhaustedWindow != window) || prefetch) {
+                    claimAsync();
+                }
+                denied.increment();
+                return false;
+            }
+            if (state.compareAndSet(s, s - 1)) {
+                if (tokens - 1 <= lowWater || prefetch) {
+                    claimAsync();
+                }
+                return true;
+            }
+        }
+    }
+
+    private void claimAsync() {
+        if (!claiming.get() && claiming.compareAndSet(false, true)) {
+            try {
+                claimExecutor.submit(claimTask);
+            } catch (RuntimeException e) {
+                claiming.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 按上一个窗口的请求量确定本次领取的大小：本地配额不足时领取本窗口的配额，窗口将要结束时预先领取下一个窗口的配额
+     */
+    private void refill() throws Exception {
+        long now = System.currentTimeMillis();
+        long window = now / windowMillis;
+        if (allotmentWindow != window) {
+            rollDemand(window);
+            allotmentWindow = window;
+            if (lastDemand > 0) {
+                allotment = (int) Math.max(minAllotment, Math.min(maxAllotment(), lastDemand / CLAIMS_PER_WINDOW));
+            }
+        }
+        long p = prefetched.get();
+        if ((p >>> 32) == (window & TOKEN_MASK) && (p & TOKEN_MASK) > 0 && prefetched.compareAndSet(p, 0)) {
+            //窗口切换前提交的领取任务，先换上预先领取的配额
+            add(state, window, p & TOKEN_MASK);
+        }
+        long s = state.get();
+        if (exhaustedWindow != window && ((s >>> 32) != (window & TOKEN_MASK) || (s & TOKEN_MASK) <= lowWater)) {
+            long granted = claim(window, allotment);
+            if (granted <= 0) {
+                logger.debug("no permits left in window {} of {}", window, path);
+                exhaustedWindow = window;
+            } else {
+                lowWater = allotment / 4;
+                add(state, window, granted);
+            }
+        }
+        if (prefetchWindow != window + 1 && now % windowMillis >= windowMillis - prefetchMillis()) {
+            prefetchWindow = window + 1;
+            long granted = claim(window + 1, allotment);
+            if (granted > 0) {
+                add(prefetched, window + 1, granted);
+            }
+        }
+    }
+
+    /**
+     * 窗口切换时由第一个请求（或后台领取）结算上一个窗口的请求量，新窗口的请求不会计入上一个窗口
+     */
+    private synchronized void rollDemand(long window) {
+        if (demandWindow != window) {
+            long count = demand.sumThenReset();
+            //请求量按窗口统计，跨过多个窗口时上一个窗口没有请求
+            lastDemand = demandWindow == window - 1 ? count : 0;
+            demandWindow = window;
+        }
+    }
+
+    /**
+     * 把领到的配额加到本地，本地是其他窗口的配额时替换
+     */
+    private void add(AtomicLong target, long window, long granted) {
+        while (true) {
+            long s = target.get();
+            long next;
+            if ((s >>> 32) == (window & TOKEN_MASK)) {
+                next = s + granted;
+            } else {
+                next = ((window & TOKEN_MASK) << 32) | granted;
+            }
+            if (target.compareAndSet(s, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从指定窗口的总量中领取配额，总量不足时领取剩余部分
+     * <p>
+     * 节点中记录窗口w及下一个窗口w+1的已分出数。领取w+1时累加到第二个数，领取更新的窗口时记录前移；
+     * 节点中的窗口比指定窗口新时，说明本节点时钟落后，按节点中的窗口领取。
+     *
+     * @return 领到的许可数，窗口已领完时返回0
+     */
+    private long claim(long window, long want) {
+        claims.incrementAndGet();
+        long budget = getWindowPermits();
+        Stat stat = new Stat();
+        for (int i = 0; i < maxCasRetries; i++) {
+            try {
+                String[] data = new String(client.getData().storingStatIn(stat).forPath(path)).split(":");
+                long recordWindow = Long.parseLong(data[0]);
+                long claimed = Long.parseLong(data[1]);
+                long next = data.length > 2 ? Long.parseLong(data[2]) : 0;
+                long target = Math.max(window, recordWindow);
+                String record;
+                long grant;
+                if (target == recordWindow) {
+                    grant = Math.min(want, budget - claimed);
+                    record = recordWindow + ":" + (claimed + grant) + ":" + next;
+                } else if (target == recordWindow + 1) {
+                    grant = Math.min(want, budget - next);
+                    record = recordWindow + ":" + claimed + ":" + (next + grant);
+                } else {
+                    //记录前移到target的前一个窗口，保留该窗口已分出的数量
+                    grant = Math.min(want, budget);
+                    record = (target - 1) + ":" + (recordWindow == target - 2 ? next : 0) + ":" + grant;
+                }
+                if (grant <= 0) {
+                    return 0;
+                }
+                client.setData().withVersion(stat.getVersion()).forPath(path, record.getBytes());
+                return grant;
+            } catch (KeeperException.BadVersionException e) {
+                logger.debug("node {} version {} changed by other client, retry", path, stat.getVersion());
+                backoff(i);
+            } catch (Exception e) {
+                throw new IllegalStateException("claim permits of " + path + " error!", e);
+            }
+        }
+        throw new IllegalStateException("claim permits of " + path + " failed after " + maxCasRetries + " retries!");
+    }
+
+    /**
+     * 版本冲突后随机退避，避免多个节点同时重试再次冲突
+     */
+    private void backoff(int retry) {
+        int bound = 1 << Math.min(retry, 4);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(bound));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while claiming permits of " + path, e);
+        }
+    }
+
+    /**
+     * @return 窗口结束前多长时间开始预先领取下一个窗口的配额
+     */
+    private long prefetchMillis() {
+        return windowMillis / 4;
+    }
+
+    private int maxAllotment() {
+        return (int) Math.max(minAllotment, Math.min(Integer.MAX_VALUE, (long) (getWindowPermits() * maxShare)));
+    }
+
+    /**
+     * @return 每个窗口整个集群的许可总数
+     */
+    public long getWindowPermits() {
+        return permitsPerSecond * windowMillis / 1000;
+    }
+
+    /**
+     * 设置窗口长度，需在init之前调用
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * 设置单份配额占窗口总量的最大比例（每个节点的误差上限），需在init之前调用
+     */
+    public void setMaxShare(double maxShare) {
+        if (maxShare <= 0 || maxShare > 1) {
+            throw new IllegalArgumentException("max share must be in (0, 1]: " + maxShare);
+        }
+        this.maxShare = maxShare;
+    }
+
+    public void setMinAllotment(int minAllotment) {
+        this.minAllotment = minAllotment;
+    }
+
+    public void setMaxCasRetries(int maxCasRetries) {
+        this.maxCasRetries = maxCasRetries;
+    }
+
+    /**
+     * 设置后台领取配额使用的线程池，需在init之前调用。不设置时使用单独的守护线程
+     */
+    public void setClaimExecutor(ExecutorService claimExecutor) {
+        this.claimExecutor = claimExecutor;
+    }
+
+    /**
+     * @return 当前每份配额的大小
+     */
+    public int getAllotment() {
+        return allotment;
+    }
+
+    /**
+     * @return 向zookeeper领取配额的次数
+     */
+    public long getClaimCount() {
+        return claims.get();
+    }
+
+    /**
+     * @return 被拒绝的请求数
+     */
+    public long getDeniedCount() {
+        return denied.sum();
+    }
+}
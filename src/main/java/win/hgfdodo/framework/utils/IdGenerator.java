@@ -2,25 +2,42 @@ package win.hgfdodo.framework.utils;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.recipes.locks.InterProcessMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class IdGenerator {
     private final static Logger logger = LoggerFactory.getLogger(IdGenerator.class);
 
-    private final static int RADIX = 62;
+    /**
+     * 从zookeeper申请区间的方式
+     */
+    public enum AllocateMode {
+        /**
+         * 使用InterProcessMutex加锁后读取、更新计数节点
+         */
+        LOCK,
+        /**
+         * 读取计数节点及其版本号，按版本号更新计数节点，版本冲突时重试，不需要加锁
+         */
+        COMPARE_AND_SET
+    }
+
     /**
      * 生成ID的默认长度
      */
     private final static int DEFAULT_ID_LENGTH = 6;
-    private final static char[] symbols = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
-            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z'};
 
     /**
      * zookeeper的连接
@@ -43,18 +60,164 @@ public class IdGenerator {
      */
     private int interval;
     /**
-     * 从zookeeper中获取检查点，生成的ID范围是
+     * 当前使用的区间，切换区间时整体替换
+     */
+    private volatile Segment current;
+    /**
+     * 切换区间、发起预取时使用的锁，生成ID时不需要加锁
+     */
+    private final Object refillLock = new Object();
+
+    /**
+     * 多个客户端间的锁，每个计数节点一把
+     */
+    private InterProcessMutex[] locks;
+
+    /**
+     * 计数节点的个数。大于1时在root下创建stripe-0到stripe-(n-1)共n个计数节点，
+     * 第i个计数节点分配的计数值v对应的ID为v*n+i，各计数节点的ID交错且不重复，申请区间的请求分散到多个节点上。
+     * 同一个root下的所有IdGenerator必须使用相同的stripes。
+     */
+    private int stripes = 1;
+    /**
+     * 轮流选择计数节点
+     */
+    private final AtomicInteger nextStripe = new AtomicInteger(ThreadLocalRandom.current().nextInt(1 << 16));
+
+    /**
+     * 申请区间的方式，默认加锁
      */
-    private long start = 0;
+    private AllocateMode allocateMode = AllocateMode.LOCK;
+
     /**
-     * 上次生成id时的值
+     * COMPARE_AND_SET方式下，版本冲突时的最大重试次数
      */
-    private long last = 0;
+    private int maxCasRetries = 100;
 
     /**
-     * 多个客户端间的锁
+     * 是否开启双缓冲：当前区间用到一定比例后，在后台预先申请下一个区间
+     */
+    private boolean buffered;
+    /**
+     * 当前区间已使用的比例达到该值时，开始预取下一个区间
+     */
+    private double prefetchRatio = 0.2;
+    /**
+     * 执行预取的线程池，未设置时在init中创建单线程的守护线程池
+     */
+    private ExecutorService prefetchExecutor;
+    /**
+     * 预取中或已预取的下一个区间
      */
-    private InterProcessMutex lock;
+    private Future<Segment> prefetched;
+
+    /**
+     * 是否根据消耗速度自动调整申请的区间大小
+     */
+    private boolean adaptive;
+    /**
+     * 自动调整时区间大小的下限
+     */
+    private int minInterval;
+    /**
+     * 自动调整时区间大小的上限
+     */
+    private int maxInterval;
+    /**
+     * 期望一个区间的使用时长，用得更快时扩大区间，明显更慢时缩小区间
+     */
+    private long targetWindowNanos;
+    /**
+     * 下次申请的区间大小
+     */
+    private volatile int nextInterval;
+    /**
+     * 区间使用时长的滑动平均值，用于计算申请频率
+     */
+    private volatile double avgSegmentNanos;
+
+    /**
+     * 本地区间日志文件，为空时不记录
+     */
+    private File journalFile;
+    /**
+     * 日志中的区间超过该时长后不再恢复
+     */
+    private long journalMaxAgeMillis = TimeUnit.DAYS.toMillis(1);
+    /**
+     * 日志定期force到磁盘的间隔
+     */
+    private long journalForceMillis = 1000;
+    private SegmentJournal journal;
+    /**
+     * 是否由本实例创建预取线程池，close时关闭
+     */
+    private boolean ownPrefetchExecutor;
+
+    /**
+     * 区间切换次数
+     */
+    private final AtomicLong switchCount = new AtomicLong();
+    /**
+     * 切换区间时，调用方仍需等待zookeeper的次数
+     */
+    private final AtomicLong waitCount = new AtomicLong();
+    /**
+     * 切换区间时，调用方等待的总时长
+     */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * 从zookeeper申请到的区间，可用ID为start+1到end
+     */
+    private static final class Segment {
+        /**
+         * 从zookeeper中获取的检查点
+         */
+        final long start;
+        final long end;
+        final int interval;
+        /**
+         * 达到该值时开始预取下一个区间
+         */
+        final long prefetchPoint;
+        /**
+         * 区间所属的计数节点，计数值v对应的ID为v*stripes+stripe
+         */
+        final int stripe;
+        final int stripes;
+        /**
+         * 上次生成id时的值，多线程通过原子自增分配
+         */
+        final AtomicLong last;
+        /**
+         * 成为当前区间的时间，在refillLock内读写
+         */
+        long activatedAt;
+        /**
+         * 从zookeeper申请到区间的时间
+         */
+        long allocatedAt = System.currentTimeMillis();
+        /**
+         * 已写入日志的高水位，生成的值超过它时需先提高日志中的高水位
+         */
+        volatile long journaled;
+
+        Segment(long start, int interval, double prefetchRatio, int stripe, int stripes) {
+            this.start = start;
+            this.stripe = stripe;
+            this.stripes = stripes;
+            this.end = start + interval;
+            this.interval = interval;
+            this.prefetchPoint = start + Math.max(1, (long) (interval * prefetchRatio));
+            this.last = new AtomicLong(start);
+            this.journaled = Long.MAX_VALUE;
+        }
+
+        long toId(long value) {
+            return value * stripes + stripe;
+        }
+    }
 
     public IdGenerator(String connectString, String root, int interval) {
         this.client = CuratorFrameworkFactory.builder()
@@ -105,79 +268,577 @@ public class IdGenerator {
      * 事务操作：获取当前节点的值v，更新当前值为v+interval，则本id生成器的id初始值从v+1开始到v+interval。
      */
     public void init() {
-        client.start();
-        lock = new InterProcessMutex(client, root);
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        locks = new InterProcessMutex[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new InterProcessMutex(client, counterPath(i));
+        }
+        if (buffered && prefetchExecutor == null) {
+            ownPrefetchExecutor = true;
+            prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "IdGenerator-prefetch-" + root);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (journalFile != null) {
+            try {
+                journal = new SegmentJournal(journalFile, root, stripes, journalForceMillis);
+            } catch (IOException e) {
+                throw new IllegalStateException("open id journal " + journalFile + " error!", e);
+            }
+            if (restore()) {
+                return;
+            }
+        }
+
         try {
             client.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).forPath(root, "0".getBytes());
         } catch (Exception e) {
             logger.error("create node root={} error!", root);
         }
-        start = requestAndGenerateFromZookeeper();
-        last = start;
+        if (stripes > 1) {
+            for (int i = 0; i < stripes; i++) {
+                String counter = counterPath(i);
+                try {
+                    client.create().withMode(CreateMode.PERSISTENT).forPath(counter, "0".getBytes());
+                } catch (KeeperException.NodeExistsException e) {
+                    logger.debug("counter node {} exists", counter);
+                } catch (Exception e) {
+                    logger.error("create counter node {} error!", counter, e);
+                }
+            }
+        }
+        requestAndGenerateFromZookeeper();
     }
 
+    /**
+     * 从本地日志恢复未用完的区间，恢复成功时不需要访问zookeeper
+     * <p>
+     * 当前区间从日志中的高水位之后继续生成；预取的区间恢复为已就绪的下一个区间。
+     *
+     * @return 是否恢复成功
+     */
+    private boolean restore() {
+        long now = System.currentTimeMillis();
+        SegmentJournal.Record record = journal.readCurrent();
+        if (record == null || now - record.allocatedAt > journalMaxAgeMillis || record.stripe >= stripes) {
+            return false;
+        }
+        long highWater = Math.max(journal.readHighWater(), record.start);
+        Segment segment = new Segment(record.start, record.interval, prefetchRatio, record.stripe, stripes);
+        segment.allocatedAt = record.allocatedAt;
+        SegmentJournal.Record reserved = journal.readReserved();
+        Segment next = null;
+        if (reserved != null && now - reserved.allocatedAt <= journalMaxAgeMillis && reserved.stripe < stripes
+                && !(reserved.start == record.start && reserved.stripe == record.stripe)) {
+            next = new Segment(reserved.start, reserved.interval, prefetchRatio, reserved.stripe, stripes);
+            next.allocatedAt = reserved.allocatedAt;
+        }
+        if (highWater >= segment.end && next == null) {
+            return false;
+        }
+
+        synchronized (refillLock) {
+            if (highWater >= segment.end) {
+                activate(next);
+            } else {
+                segment.last.set(highWater);
+                segment.activatedAt = System.nanoTime();
+                segment.journaled = highWater;
+                current = segment;
+                if (next != null) {
+                    final Segment ready = next;
+                    FutureTask<Segment> task = new FutureTask<Segment>(new Callable<Segment>() {
+                        public Segment call() throws Exception {
+                            return ready;
+                        }
+                    });
+                    task.run();
+                    prefetched = task;
+                }
+            }
+        }
+        logger.info("restore id interval of {} from journal {}, continue after {}", root, journalFile, current.last.get());
+        if (buffered && prefetched == null && current.last.get() >= current.prefetchPoint) {
+            prefetch(current);
+        }
+        return true;
+    }
+
+    /**
+     * 关闭本实例创建的预取线程池和本地日志，zookeeper连接由调用方关闭
+     */
+    public void close() {
+        if (ownPrefetchExecutor && prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
 
     /**
      * start生成ID
      * <p>
      * 生成的ID必须保证在范围内，查过范围需请求协商。
+     * 开启双缓冲时，当前区间用到prefetchRatio后在后台申请下一个区间，用完后直接切换，不再等待zookeeper。
+     * <p>
+     * 线程安全：区间内的ID通过原子自增分配，只有越过区间末尾的线程负责切换区间，其他线程等待切换完成后重试。
      *
      * @return
      */
     public String generateId() {
-        long toGenerateValue = ++last;
-        if (toGenerateValue > start + interval) {
-            toGenerateValue = requestAndGenerateFromZookeeper()+1;
-            last = toGenerateValue;
-            logger.info("generate from zk once: "+ transToSymbol(toGenerateValue));
+        return transToSymbol(nextValue());
+    }
+
+    private long nextValue() {
+        while (true) {
+            Segment segment = current;
+            long toGenerateValue = segment.last.incrementAndGet();
+            if (toGenerateValue <= segment.end) {
+                if (buffered && toGenerateValue == segment.prefetchPoint) {
+                    prefetch(segment);
+                }
+                if (toGenerateValue > segment.journaled) {
+                    journal(segment, toGenerateValue);
+                }
+                return segment.toId(toGenerateValue);
+            }
+            refill(segment);
+        }
+    }
+
+    /**
+     * 切换用完的区间，多个线程同时发现区间用完时，只有第一个线程向zookeeper申请
+     *
+     * @param exhausted 已用完的区间
+     */
+    private void refill(Segment exhausted) {
+        synchronized (refillLock) {
+            if (current == exhausted) {
+                activate(switchInterval(exhausted));
+                logger.info("generate from zk once: " + transToSymbol(current.toId(current.start + 1)));
+            }
+        }
+    }
+
+    /**
+     * 生成ID的原始值，不做62进制编码
+     */
+    public long nextId() {
+        return nextValue();
+    }
+
+    /**
+     * 批量生成ID
+     *
+     * @param n 生成的个数
+     */
+    public String[] generateIds(int n) {
+        long[] values = new long[n];
+        fill(values);
+        String[] ids = new String[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = transToSymbol(values[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * 批量生成ID的原始值，填满dst
+     * <p>
+     * 每个区间只做一次原子加，一次占用当前区间内连续的一段ID，区间不够时从下一个区间继续占用。
+     *
+     * @param dst 存放生成的ID
+     */
+    public void fill(long[] dst) {
+        int filled = 0;
+        while (filled < dst.length) {
+            Segment segment = current;
+            int want = dst.length - filled;
+            long from = segment.last.getAndAdd(want);
+            if (from >= segment.end) {
+                refill(segment);
+                continue;
+            }
+            long to = Math.min(from + want, segment.end);
+            if (buffered && from < segment.prefetchPoint && to >= segment.prefetchPoint) {
+                prefetch(segment);
+            }
+            if (to > segment.journaled) {
+                journal(segment, to);
+            }
+            for (long value = from + 1; value <= to; value++) {
+                dst[filled++] = segment.toId(value);
+            }
         }
-        return transToSymbol(toGenerateValue);
     }
 
     public long requestAndGenerateFromZookeeper() {
+        synchronized (refillLock) {
+            int size = nextInterval > 0 ? nextInterval : interval;
+            activate(allocate(size));
+            return current.start;
+        }
+    }
+
+    /**
+     * 切换当前区间，需持有refillLock
+     */
+    private void activate(Segment segment) {
+        segment.activatedAt = System.nanoTime();
+        if (journal != null) {
+            journal.writeCurrent(segment.start, segment.interval, segment.stripe, segment.allocatedAt);
+            segment.journaled = segment.start;
+        }
+        current = segment;
+    }
+
+    /**
+     * 在发出value之前，把日志中的高水位提高到value之后，每次多预留区间的1%，减少写日志的次数
+     */
+    private void journal(Segment segment, long value) {
+        long highWater = Math.min(segment.end, value + Math.max(1, segment.interval / 100));
+        synchronized (segment) {
+            if (current == segment && value > segment.journaled) {
+                journal.raiseHighWater(highWater);
+                segment.journaled = highWater;
+            }
+        }
+    }
+
+    /**
+     * 根据区间的消耗速度计算下次申请的区间大小
+     * <p>
+     * 按已用时长和已用个数估算整个区间的使用时长：比期望时长短时区间翻倍，超过期望时长两倍时区间减半，
+     * 结果限制在[minInterval, maxInterval]内。未开启自动调整时始终为interval。
+     *
+     * @param segment 当前区间，需持有refillLock
+     * @param used    当前区间已使用的个数
+     */
+    private int computeNextInterval(Segment segment, long used) {
+        if (!adaptive) {
+            return interval;
+        }
+        long elapsed = System.nanoTime() - segment.activatedAt;
+        double lifetime = (double) elapsed * segment.interval / Math.max(1, used);
+        avgSegmentNanos = avgSegmentNanos == 0 ? lifetime : avgSegmentNanos * 0.7 + lifetime * 0.3;
+
+        int size = segment.interval;
+        if (lifetime < targetWindowNanos) {
+            size = (int) Math.min((long) size * 2, maxInterval);
+        } else if (lifetime > targetWindowNanos * 2) {
+            size = Math.max(size / 2, minInterval);
+        }
+        if (size != segment.interval) {
+            logger.info("adjust id interval of {} from {} to {}", root, segment.interval, size);
+        }
+        nextInterval = size;
+        return size;
+    }
+
+    /**
+     * 在后台申请下一个区间
+     *
+     * @param segment 触发预取的区间，已被切换时不再预取
+     */
+    private void prefetch(Segment segment) {
+        synchronized (refillLock) {
+            if (current != segment || prefetched != null) {
+                return;
+            }
+            final int size = computeNextInterval(segment, segment.prefetchPoint - segment.start);
+            prefetched = prefetchExecutor.submit(new Callable<Segment>() {
+                public Segment call() throws Exception {
+                    Segment next = allocate(size);
+                    if (journal != null) {
+                        journal.writeReserved(next.start, next.interval, next.stripe, next.allocatedAt);
+                    }
+                    return next;
+                }
+            });
+        }
+    }
+
+    /**
+     * 当前区间用完，切换到下一个区间
+     * <p>
+     * 预取的区间已就绪时只是替换当前区间；预取未完成或失败时，调用方需等待zookeeper。
+     *
+     * @param exhausted 已用完的区间
+     * @return 下一个区间
+     */
+    private Segment switchInterval(Segment exhausted) {
+        switchCount.incrementAndGet();
+        Future<Segment> future = prefetched;
+        prefetched = null;
+        if (future != null && future.isDone()) {
+            try {
+                return future.get();
+            } catch (Exception e) {
+                logger.warn("prefetch id interval of {} error, request again", root, e);
+                future = null;
+            }
+        }
+
+        long begin = System.nanoTime();
         try {
-            lock.acquire(2, TimeUnit.SECONDS);
-            byte[] data = client.getData().forPath(root);
+            if (future != null) {
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    logger.warn("prefetch id interval of {} error, request again", root, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting id interval of " + root, e);
+                }
+            }
+            int size = computeNextInterval(exhausted, exhausted.interval);
+            return allocate(size);
+        } finally {
+            waitCount.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 从zookeeper申请一个区间，有多个计数节点时轮流选择
+     *
+     * @param size 区间大小
+     */
+    private Segment allocate(int size) {
+        int stripe = stripes == 1 ? 0 : (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes;
+        long point;
+        if (allocateMode == AllocateMode.COMPARE_AND_SET) {
+            point = compareAndSetFromZookeeper(counterPath(stripe), size);
+        } else {
+            point = lockAndGenerateFromZookeeper(counterPath(stripe), locks[stripe], size);
+        }
+        return new Segment(point, size, prefetchRatio, stripe, stripes);
+    }
+
+    private String counterPath(int stripe) {
+        return stripes == 1 ? root : root + "/stripe-" + stripe;
+    }
+
+    private long lockAndGenerateFromZookeeper(String counter, InterProcessMutex lock, int size) {
+        boolean acquired = false;
+        try {
+            acquired = lock.acquire(2, TimeUnit.SECONDS);
+            if (!acquired) {
+                throw new IllegalStateException("acquire lock of " + counter + " timeout!");
+            }
+            byte[] data = client.getData().forPath(counter);
             long point = Long.parseLong(new String(data));
-            client.setData().forPath(root, String.valueOf(point + interval).getBytes());
-            start = point;
+            client.setData().forPath(counter, String.valueOf(point + size).getBytes());
+            return point;
+        } catch (IllegalStateException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("acquired lock to generate new id intervals error! ", e);
+            throw new IllegalStateException("acquired lock to generate new id intervals of " + counter + " error!", e);
         } finally {
+            if (acquired) {
+                try {
+                    lock.release();
+                } catch (Exception e) {
+                    logger.error("release lock error!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 不加锁申请区间
+     * <p>
+     * 读取计数节点的值v和版本号，按该版本号将节点更新为v+size。
+     * 若期间其他客户端已更新节点，则版本号不匹配，重新读取后再试。
+     * 一次申请只需要一次getData和一次setData。
+     *
+     * @param counter 计数节点
+     * @param size    区间大小
+     * @return 区间起始值v，本次可用的ID为v+1到v+size
+     */
+    private long compareAndSetFromZookeeper(String counter, int size) {
+        Stat stat = new Stat();
+        for (int i = 0; i < maxCasRetries; i++) {
             try {
-                lock.release();
+                byte[] data = client.getData().storingStatIn(stat).forPath(counter);
+                long point = Long.parseLong(new String(data));
+                client.setData().withVersion(stat.getVersion()).forPath(counter, String.valueOf(point + size).getBytes());
+                return point;
+            } catch (KeeperException.BadVersionException e) {
+                logger.debug("node {} version {} changed by other client, retry", counter, stat.getVersion());
+                backoff(i);
             } catch (Exception e) {
-                logger.error("release lock error!", e);
+                throw new IllegalStateException("compare and set id interval of " + counter + " error!", e);
             }
         }
-        return start;
+        throw new IllegalStateException("compare and set id interval of " + counter + " failed after " + maxCasRetries + " retries!");
+    }
+
+    /**
+     * 版本冲突后随机退避，避免多个客户端同时重试再次冲突
+     *
+     * @param retry 已重试的次数
+     */
+    private void backoff(int retry) {
+        int bound = 1 << Math.min(retry, 4);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(bound));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while allocating id interval of " + root, e);
+        }
     }
 
     public String transToSymbol(long toGenerateValue) {
-        StringBuilder sb = new StringBuilder();
-        while (toGenerateValue > 0) {
-            sb.insert(0, symbols[(int) (toGenerateValue % symbols.length)]);
-            toGenerateValue /= symbols.length;
+        return Base62.toString(toGenerateValue, fixedLength ? length : 0);
+    }
+
+    public AllocateMode getAllocateMode() {
+        return allocateMode;
+    }
+
+    /**
+     * 设置申请区间的方式，需在init之前调用
+     */
+    public void setAllocateMode(AllocateMode allocateMode) {
+        this.allocateMode = allocateMode;
+    }
+
+    public void setMaxCasRetries(int maxCasRetries) {
+        this.maxCasRetries = maxCasRetries;
+    }
+
+    /**
+     * 开启本地区间日志，需在init之前调用
+     * <p>
+     * 重启时从日志恢复未用完的区间和已预取的区间，不需要等待zookeeper即可生成ID。
+     * 日志文件同一时刻只能被一个IdGenerator使用。
+     *
+     * @param journalFile   日志文件
+     * @param maxAgeMillis  日志中的区间申请后超过该时长不再恢复
+     * @param forceMillis   定期把日志force到磁盘的间隔
+     */
+    public void setJournal(File journalFile, long maxAgeMillis, long forceMillis) {
+        this.journalFile = journalFile;
+        this.journalMaxAgeMillis = maxAgeMillis;
+        this.journalForceMillis = forceMillis;
+    }
+
+    public void setJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * 设置计数节点的个数，需在init之前调用
+     */
+    public void setStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive, but " + stripes);
         }
-        if (fixedLength) {
-            return toFixedLength(sb);
+        this.stripes = stripes;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    public boolean isBuffered() {
+        return buffered;
+    }
+
+    /**
+     * 开启或关闭双缓冲，需在init之前调用
+     */
+    public void setBuffered(boolean buffered) {
+        this.buffered = buffered;
+    }
+
+    /**
+     * 设置开始预取下一个区间时，当前区间已使用的比例，取值(0, 1)
+     */
+    public void setPrefetchRatio(double prefetchRatio) {
+        if (prefetchRatio <= 0 || prefetchRatio >= 1) {
+            throw new IllegalArgumentException("prefetchRatio must between 0 and 1, but " + prefetchRatio);
         }
+        this.prefetchRatio = prefetchRatio;
+    }
+
+    /**
+     * 使用外部线程池预取区间，多个IdGenerator可共用一个线程池，需在init之前调用
+     */
+    public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
 
-        return sb.toString();
+    /**
+     * @return 区间切换的总次数
+     */
+    public long getSwitchCount() {
+        return switchCount.get();
     }
 
+    /**
+     * @return 切换区间时，调用方仍需等待zookeeper的次数
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
 
     /**
-     * 将value转为固定长度
+     * @return 切换区间时，调用方等待zookeeper的总时长，单位毫秒
+     */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * 开启区间大小自动调整，需在init之前调用，构造时的interval作为初始区间大小
      *
-     * @param value
-     * @return
+     * @param minInterval        区间大小下限
+     * @param maxInterval        区间大小上限
+     * @param targetWindowMillis 期望一个区间的使用时长，单位毫秒
      */
-    private String toFixedLength(StringBuilder value) {
-        for (int i = value.length(); i < length; i++) {
-            value.insert(0, "0");
+    public void setAdaptive(int minInterval, int maxInterval, long targetWindowMillis) {
+        if (minInterval <= 0 || minInterval > maxInterval) {
+            throw new IllegalArgumentException("illegal interval bounds [" + minInterval + ", " + maxInterval + "]");
         }
-        return value.toString();
+        this.adaptive = true;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.targetWindowNanos = TimeUnit.MILLISECONDS.toNanos(targetWindowMillis);
+        this.interval = Math.min(Math.max(interval, minInterval), maxInterval);
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return 当前区间的大小，自动调整时可能与interval不同
+     */
+    public int getCurrentInterval() {
+        Segment segment = current;
+        return segment == null ? interval : segment.interval;
+    }
+
+    /**
+     * @return 按区间平均使用时长估算的每分钟申请区间次数，仅在开启自动调整后统计
+     */
+    public double getRefillsPerMinute() {
+        double avg = avgSegmentNanos;
+        return avg == 0 ? 0 : TimeUnit.MINUTES.toNanos(1) / avg;
     }
 
     public int getInterval() {
@@ -185,10 +846,12 @@ public class IdGenerator {
     }
 
     public long getStart() {
-        return start;
+        Segment segment = current;
+        return segment == null ? 0 : segment.start;
     }
 
     public long getLast() {
-        return last;
+        Segment segment = current;
+        return segment == null ? 0 : Math.min(segment.last.get(), segment.end);
     }
 }
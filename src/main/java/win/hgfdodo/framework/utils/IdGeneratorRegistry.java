@@ -0,0 +1,164 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 多个命名序列共用一个zookeeper连接
+ * <p>
+ * 每个序列对应root/name下的一个IdGenerator，所有序列共用同一个连接和同一个预取线程池。
+ * 默认使用COMPARE_AND_SET方式申请区间并开启双缓冲；热点序列可通过register指定多个计数节点，分散申请区间的请求。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接实例化，调用init
+ * 2. 按名字调用generateId或get(name)获取对应的IdGenerator
+ */
+public class IdGeneratorRegistry {
+    private final static Logger logger = LoggerFactory.getLogger(IdGeneratorRegistry.class);
+
+    private CuratorFramework client;
+
+    /**
+     * 序列在zookeeper中的root路径
+     */
+    private String root = "/utils/idgenerator";
+
+    /**
+     * 未单独注册的序列使用的区间大小
+     */
+    private int interval;
+
+    /**
+     * 所有序列共用的预取线程池
+     */
+    private ExecutorService prefetchExecutor;
+
+    private final Map<String, IdGenerator> generators = new ConcurrentHashMap<String, IdGenerator>();
+
+    /**
+     * 使用默认root创建
+     *
+     * @param client   使用curator框架的zookeeper连接
+     * @param interval 未单独注册的序列使用的区间大小
+     */
+    public IdGeneratorRegistry(CuratorFramework client, int interval) {
+        this.client = client;
+        this.interval = interval;
+    }
+
+    /**
+     * @param client   使用curator框架的zookeeper连接
+     * @param root     序列在zookeeper中的root路径
+     * @param interval 未单独注册的序列使用的区间大小
+     */
+    public IdGeneratorRegistry(CuratorFramework client, String root, int interval) {
+        this.client = client;
+        this.root = root;
+        this.interval = interval;
+    }
+
+    public void init() {
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        prefetchExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IdGeneratorRegistry-prefetch-" + (count++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 关闭所有序列和共用的预取线程池，zookeeper连接由调用方关闭
+     */
+    public void close() {
+        for (IdGenerator idGenerator : generators.values()) {
+            idGenerator.close();
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 按序列名生成ID，序列不存在时使用默认配置创建
+     */
+    public String generateId(String name) {
+        return get(name).generateId();
+    }
+
+    /**
+     * 获取序列对应的IdGenerator，不存在时使用默认配置创建
+     */
+    public IdGenerator get(String name) {
+        IdGenerator idGenerator = generators.get(name);
+        if (idGenerator != null) {
+            return idGenerator;
+        }
+        return getOrCreate(name, interval, 1);
+    }
+
+    /**
+     * 注册序列，已注册时返回已有的IdGenerator
+     *
+     * @param name     序列名，作为root下的节点名
+     * @param interval 区间大小
+     * @param stripes  计数节点的个数，同一序列在所有进程中必须一致
+     * @throws IllegalArgumentException 序列已使用不同的stripes注册
+     */
+    public IdGenerator register(String name, int interval, int stripes) {
+        IdGenerator idGenerator = getOrCreate(name, interval, stripes);
+        if (idGenerator.getStripes() != stripes) {
+            throw new IllegalArgumentException("id sequence " + name + " is registered with " + idGenerator.getStripes()
+                    + " stripes, can not register with " + stripes);
+        }
+        return idGenerator;
+    }
+
+    /**
+     * 在锁外创建并初始化IdGenerator（init会访问zookeeper），再用putIfAbsent发布，
+     * 一个序列初始化慢不会阻塞其他序列的注册和查找。并发创建同一序列时关闭落选的实例，它已申请的区间被跳过。
+     */
+    private IdGenerator getOrCreate(String name, int interval, int stripes) {
+        if (name == null || name.isEmpty() || name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("illegal sequence name: " + name);
+        }
+        IdGenerator idGenerator = generators.get(name);
+        if (idGenerator != null) {
+            return idGenerator;
+        }
+        idGenerator = new IdGenerator(client, root + "/" + name, interval);
+        idGenerator.setAllocateMode(IdGenerator.AllocateMode.COMPARE_AND_SET);
+        idGenerator.setBuffered(true);
+        idGenerator.setPrefetchExecutor(prefetchExecutor);
+        idGenerator.setStripes(stripes);
+        idGenerator.init();
+        IdGenerator existing = generators.putIfAbsent(name, idGenerator);
+        if (existing != null) {
+            idGenerator.close();
+            return existing;
+        }
+        logger.info("register id sequence {} with interval {} and {} stripes", name, interval, stripes);
+        return idGenerator;
+    }
+
+    /**
+     * @return 已注册的序列
+     */
+    public Map<String, IdGenerator> getGenerators() {
+        return Collections.unmodifiableMap(generators);
+    }
+}
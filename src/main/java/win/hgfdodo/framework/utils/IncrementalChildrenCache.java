@@ -0,0 +1,523 @@
+package win.hgfdodo.framework.utils;
+
+import com.google.common.base.Function;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 重连后增量同步的子节点缓存
+ * <p>
+ * PathChildrenCache在每次RECONNECTED后重新读取所有子节点的数据，zookeeper重启时所有客户端同时全量读取。
+ * 本缓存的事件与PathChildrenCache相同（CHILD_ADDED、CHILD_UPDATED、CHILD_REMOVED、INITIALIZED和连接事件），重连时只做必要的读取：
+ * <ul>
+ * <li>会话未过期：zookeeper客户端重连时自动恢复watch并补发断开期间的事件，只重试断开期间失败的读取</li>
+ * <li>会话已过期：watch全部失效，重新读取子节点列表，对每个已缓存的子节点使用exists取得Stat并重新注册watch，
+ * mzxid与缓存不同时才读取数据；新增的子节点读取数据，消失的子节点通知删除</li>
+ * </ul>
+ * 所有读取都使用inBackground异步发出，不等待上一个结果，回调在zookeeper事件线程中依次执行。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接和父节点路径实例化，添加监听者，调用init，init返回时已加载全部子节点
+ * 2. 使用getCurrentData读取，监听者在zookeeper事件线程中回调，不能阻塞
+ * 3. 退出前调用close
+ */
+public class IncrementalChildrenCache {
+    private final static Logger logger = LoggerFactory.getLogger(IncrementalChildrenCache.class);
+
+    private CuratorFramework client;
+
+    private String path;
+
+    private long initTimeoutMillis = 60000;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 子节点完整路径到数据的映射
+     */
+    private final ConcurrentHashMap<String, ChildData> children = new ConcurrentHashMap<String, ChildData>();
+
+    /**
+     * 连接断开导致失败、需要在重连后重试的读取。
+     * 加入后如果已经重连（curator按重试策略重试的读取可能在RECONNECTED之后才失败），立即重试；
+     * 取出时使用remove的结果，保证重连同步和失败回调只有一方重新读取
+     */
+    private final Set<String> retryData = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean retryChildren = new AtomicBoolean(false);
+
+    /**
+     * 上次连接的会话，重连后会话不同表示watch已失效
+     */
+    private volatile long sessionId;
+
+    /**
+     * 已发出还未回调的读取数，减到0时首次加载或本次同步完成
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean initializing = true;
+    private volatile long resyncBegin;
+
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong childrenReads = new AtomicLong();
+    private final AtomicLong statReads = new AtomicLong();
+    private final AtomicLong dataReads = new AtomicLong();
+    private volatile long lastResyncMillis;
+
+    private final ListenerContainer<PathChildrenCacheListener> listeners = new ListenerContainer<PathChildrenCacheListener>();
+
+    private final CuratorWatcher childWatcher = new CuratorWatcher() {
+        public void process(WatchedEvent event) throws Exception {
+            if (event.getType() != Watcher.Event.EventType.None) {
+                readChildren(false);
+            }
+        }
+    };
+
+    private final CuratorWatcher dataWatcher = new CuratorWatcher() {
+        public void process(WatchedEvent event) throws Exception {
+            switch (event.getType()) {
+                case NodeDataChanged:
+                    readData(event.getPath(), true);
+                    break;
+                case NodeDeleted:
+                    remove(event.getPath());
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private final BackgroundCallback childrenCallback = new BackgroundCallback() {
+        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            try {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    childrenRead(event.getChildren(), event.getContext() != null);
+                } else if (code == KeeperException.Code.NONODE) {
+                    //父节点不存在，删除所有子节点，父节点创建后childWatcher触发
+                    childrenRead(Collections.<String>emptyList(), false);
+                    outstanding.incrementAndGet();
+                    client.checkExists().usingWatcher(childWatcher).inBackground(existsCallback).forPath(path);
+                } else {
+                    logger.warn("get children of {} error: {}, retry after reconnected", path, code);
+                    retryChildren(code);
+                }
+            } finally {
+                done();
+            }
+        }
+    };
+
+    private final BackgroundCallback existsCallback = new BackgroundCallback() {
+        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            try {
+                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                    //检查期间父节点已创建
+                    readChildren(false);
+                } else if (event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+                    retryChildren(KeeperException.Code.get(event.getResultCode()));
+                }
+            } finally {
+                done();
+            }
+        }
+    };
+
+    /**
+     * 会话过期后比较已缓存子节点的Stat，变化时才读取数据
+     */
+    private final BackgroundCallback statCallback = new BackgroundCallback() {
+        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            try {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    ChildData cached = children.get(event.getPath());
+                    if (cached == null || cached.getStat().getMzxid() != event.getStat().getMzxid()) {
+                        //exists已注册watch，重复注册会使一次修改触发两次读取
+                        readData(event.getPath(), false);
+                    }
+                } else if (code == KeeperException.Code.NONODE) {
+                    remove(event.getPath());
+                } else {
+                    retryData(event.getPath(), code);
+                }
+            } finally {
+                done();
+            }
+        }
+    };
+
+    private final BackgroundCallback dataCallback = new BackgroundCallback() {
+        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            try {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    dataRead(new ChildData(event.getPath(), event.getStat(), event.getData()));
+                } else if (code == KeeperException.Code.NONODE) {
+                    remove(event.getPath());
+                } else {
+                    retryData(event.getPath(), code);
+                }
+            } finally {
+                done();
+            }
+        }
+    };
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            switch (newState) {
+                case SUSPENDED:
+                    publish(new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.CONNECTION_SUSPENDED, null));
+                    break;
+                case LOST:
+                    publish(new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.CONNECTION_LOST, null));
+                    break;
+                case RECONNECTED:
+                    resync();
+                    publish(new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.CONNECTION_RECONNECTED, null));
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * @param client 使用curator框架的zookeeper连接
+     * @param path   父节点路径
+     */
+    public IncrementalChildrenCache(CuratorFramework client, String path) {
+        this.client = client;
+        this.path = path;
+    }
+
+    public void init() {
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+        try {
+            client.blockUntilConnected();
+            sessionId = client.getZookeeperClient().getZooKeeper().getSessionId();
+            readChildren(false);
+            if (!initialized.await(initTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("load children of " + path + " timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("load children of " + path + " interrupted", e);
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("start children cache of " + path + " error", e);
+        }
+    }
+
+    /**
+     * 停止同步，已注册的watch触发后不再读取
+     */
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        children.clear();
+    }
+
+    /**
+     * 重连后同步：会话未变时只重试失败的读取，会话变化时比较所有子节点的Stat
+     */
+    private void resync() {
+        if (closed) {
+            return;
+        }
+        long current;
+        try {
+            current = client.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            throw new IllegalStateException("get session of " + path + " error", e);
+        }
+        resyncs.incrementAndGet();
+        resyncBegin = System.nanoTime();
+        if (current == sessionId) {
+            logger.info("children cache {} reconnected with the same session, retry {} reads", path, retryData.size() + (retryChildren.get() ? 1 : 0));
+            if (retryChildren.compareAndSet(true, false)) {
+                readChildren(false);
+            }
+            for (String childPath : new ArrayList<String>(retryData)) {
+                if (retryData.remove(childPath)) {
+                    readData(childPath, true);
+                }
+            }
+        } else {
+            logger.info("children cache {} reconnected with a new session, compare stat of {} children", path, children.size());
+            sessionId = current;
+            retryChildren.set(false);
+            retryData.clear();
+            readChildren(true);
+        }
+        if (outstanding.get() == 0) {
+            //没有需要重试的读取
+            lastResyncMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resyncBegin);
+            resyncBegin = 0;
+        }
+    }
+
+    /**
+     * @param compareStat 是否在子节点列表返回后比较已缓存子节点的Stat
+     */
+    private void readChildren(boolean compareStat) {
+        if (closed) {
+            return;
+        }
+        childrenReads.incrementAndGet();
+        outstanding.incrementAndGet();
+        try {
+            client.getChildren().usingWatcher(childWatcher).inBackground(childrenCallback, compareStat ? Boolean.TRUE : null).forPath(path);
+        } catch (Exception e) {
+            done();
+            retryChildren.set(true);
+            logger.error("get children of {} error!", path, e);
+        }
+    }
+
+    /**
+     * @param watch 是否注册数据watch
+     */
+    private void readData(String childPath, boolean watch) {
+        if (closed) {
+            return;
+        }
+        dataReads.incrementAndGet();
+        outstanding.incrementAndGet();
+        try {
+            if (watch) {
+                client.getData().usingWatcher(dataWatcher).inBackground(dataCallback).forPath(childPath);
+            } else {
+                client.getData().inBackground(dataCallback).forPath(childPath);
+            }
+        } catch (Exception e) {
+            done();
+            retryData.add(childPath);
+            logger.error("get data of {} error!", childPath, e);
+        }
+    }
+
+    private void readStat(String childPath) {
+        statReads.incrementAndGet();
+        outstanding.incrementAndGet();
+        try {
+            client.checkExists().usingWatcher(dataWatcher).inBackground(statCallback).forPath(childPath);
+        } catch (Exception e) {
+            done();
+            retryData.add(childPath);
+            logger.error("check stat of {} error!", childPath, e);
+        }
+    }
+
+    /**
+     * 记录失败的子节点列表读取，连接断开导致的失败在已经重连时立即重试
+     */
+    private void retryChildren(KeeperException.Code code) {
+        retryChildren.set(true);
+        if (retryable(code) && client.getZookeeperClient().isConnected() && retryChildren.compareAndSet(true, false)) {
+            readChildren(false);
+        }
+    }
+
+    /**
+     * 记录失败的数据读取，连接断开导致的失败在已经重连时立即重试
+     */
+    private void retryData(String childPath, KeeperException.Code code) {
+        retryData.add(childPath);
+        if (retryable(code) && client.getZookeeperClient().isConnected() && retryData.remove(childPath)) {
+            readData(childPath, true);
+        }
+    }
+
+    /**
+     * @return 失败是否由连接断开引起，重连后重试可以成功；其他错误（如权限）只在下次重连时重试，避免反复失败
+     */
+    private static boolean retryable(KeeperException.Code code) {
+        return code == KeeperException.Code.CONNECTIONLOSS
+                || code == KeeperException.Code.OPERATIONTIMEOUT
+                || code == KeeperException.Code.SESSIONMOVED;
+    }
+
+    private void done() {
+        if (outstanding.decrementAndGet() != 0) {
+            return;
+        }
+        if (initializing) {
+            initializing = false;
+            logger.info("children cache {} initialized with {} children", path, children.size());
+            PathChildrenCacheEvent event = new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.INITIALIZED, null) {
+                @Override
+                public List<ChildData> getInitialData() {
+                    return getCurrentData();
+                }
+            };
+            publish(event);
+            initialized.countDown();
+        } else if (resyncBegin > 0) {
+            lastResyncMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resyncBegin);
+            resyncBegin = 0;
+        }
+    }
+
+    /**
+     * 比较子节点列表，在zookeeper事件线程中执行
+     */
+    private void childrenRead(List<String> names, boolean compareStat) {
+        Set<String> current = new HashSet<String>();
+        for (String name : names) {
+            current.add(ZKPaths.makePath(path, name));
+        }
+        for (String childPath : children.keySet()) {
+            if (!current.contains(childPath)) {
+                remove(childPath);
+            }
+        }
+        for (String childPath : current) {
+            if (!children.containsKey(childPath)) {
+                readData(childPath, true);
+            } else if (compareStat) {
+                readStat(childPath);
+            }
+        }
+    }
+
+    private void dataRead(ChildData childData) {
+        if (closed) {
+            return;
+        }
+        ChildData previous = children.put(childData.getPath(), childData);
+        if (previous == null) {
+            if (!initializing) {
+                publish(new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.CHILD_ADDED, childData));
+            }
+        } else if (previous.getStat().getMzxid() != childData.getStat().getMzxid()) {
+            publish(new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.CHILD_UPDATED, childData));
+        }
+    }
+
+    private void remove(String childPath) {
+        ChildData previous = children.remove(childPath);
+        if (previous != null) {
+            publish(new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.CHILD_REMOVED, previous));
+        }
+    }
+
+    private void publish(final PathChildrenCacheEvent event) {
+        listeners.forEach(new Function<PathChildrenCacheListener, Void>() {
+            public Void apply(PathChildrenCacheListener listener) {
+                try {
+                    listener.childEvent(client, event);
+                } catch (Exception e) {
+                    logger.error("listener of children cache {} error!", path, e);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return 所有子节点，按路径排序
+     */
+    public List<ChildData> getCurrentData() {
+        List<ChildData> data = new ArrayList<ChildData>(children.values());
+        Collections.sort(data);
+        return data;
+    }
+
+    /**
+     * @param childPath 子节点完整路径
+     * @return 子节点的数据和Stat，不存在时返回null
+     */
+    public ChildData getCurrentData(String childPath) {
+        return children.get(childPath);
+    }
+
+    /**
+     * @return 子节点完整路径到数据的只读视图
+     */
+    public Map<String, ChildData> getCurrentChildren() {
+        return Collections.unmodifiableMap(children);
+    }
+
+    /**
+     * 监听者在zookeeper事件线程中回调，首次加载的子节点不发CHILD_ADDED，通过INITIALIZED事件的getInitialData取得
+     */
+    public ListenerContainer<PathChildrenCacheListener> getListenable() {
+        return listeners;
+    }
+
+    public void setInitTimeoutMillis(long initTimeoutMillis) {
+        this.initTimeoutMillis = initTimeoutMillis;
+    }
+
+    /**
+     * @return 重连后同步的次数
+     */
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+
+    /**
+     * @return 读取子节点列表的次数
+     */
+    public long getChildrenReadCount() {
+        return childrenReads.get();
+    }
+
+    /**
+     * @return 会话过期后比较Stat的次数
+     */
+    public long getStatReadCount() {
+        return statReads.get();
+    }
+
+    /**
+     * @return 读取子节点数据的次数
+     */
+    public long getDataReadCount() {
+        return dataReads.get();
+    }
+
+    /**
+     * @return 最近一次同步从重连到所有读取完成的耗时
+     */
+    public long getLastResyncMillis() {
+        return lastResyncMillis;
+    }
+}
@@ -0,0 +1,17 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+/**
+ * CoalescingDispatcher分发的节点变化回调
+ * <p>
+ * 同一路径的回调按顺序执行，合并窗口内的多次变化只回调最后一次的状态。
+ */
+public interface NodeChangeListener {
+
+    /**
+     * @param path 变化的节点路径
+     * @param data 节点最新的数据和Stat，节点已删除时为null
+     */
+    void nodeChanged(String path, ChildData data) throws Exception;
+}
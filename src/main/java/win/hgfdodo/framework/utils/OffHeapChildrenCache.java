@@ -0,0 +1,465 @@
+package win.hgfdodo.framework.utils;
+
+import com.google.common.base.Function;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据放在堆外的子节点缓存
+ * <p>
+ * 使用cacheData为true的PathChildrenCache监听子节点，收到事件后把数据复制到堆外，再调用clearDataBytes清除PathChildrenCache中的byte[]，
+ * 堆内只保留路径、Stat和每个子节点一个很小的Entry，不需要额外读取zookeeper。
+ * <p>
+ * 堆外内存按chunkSize分块，来自ByteBuffer.allocateDirect，或者设置setMappedFile后来自内存映射文件。
+ * 每块只存放一种大小的槽位（64字节起按2的幂分级，类似memcached的slab），数据放入能容纳它的最小槽位；
+ * 释放的槽位按先进先出重新使用，尽量推迟覆盖刚释放的数据。
+ * 数据为null或空的子节点不占用槽位；超过chunkSize的数据记录错误日志后留在堆内，仍然可以读取。
+ * <p>
+ * getData返回堆外数据的只读视图，不复制，在该路径下一次变化之前有效；需要长期持有时使用copyData，copyData会检查复制期间数据是否变化。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接和父节点路径实例化，按需设置chunkSize、mappedFile，调用init，init返回时已加载全部子节点
+ * 2. 使用getData、copyData、getStat读取，getListenable添加的监听者在数据复制到堆外之后回调
+ * 3. 退出前调用close
+ */
+public class OffHeapChildrenCache {
+    private final static Logger logger = LoggerFactory.getLogger(OffHeapChildrenCache.class);
+
+    /**
+     * 最小槽位为2^6字节
+     */
+    private final static int MIN_SLOT_SHIFT = 6;
+
+    /**
+     * 每个子节点在堆内的大致开销，不含路径字符：PathChildrenCache的ChildData、Stat、Map节点，以及本类的Entry和Map节点
+     */
+    private final static int HEAP_BYTES_PER_CHILD = 240;
+
+    private CuratorFramework client;
+
+    private String path;
+
+    private PathChildrenCache pathChildrenCache;
+
+    /**
+     * 堆外内存块的大小，也是放在堆外的单个子节点数据的上限
+     */
+    private int chunkSize = 1024 * 1024;
+
+    /**
+     * 内存映射文件，为null时使用直接内存
+     */
+    private File mappedFile;
+    private RandomAccessFile randomAccessFile;
+
+    private long initTimeoutMillis = 60000;
+
+    /**
+     * 已分配的内存块，只在事件线程中增加
+     */
+    private final CopyOnWriteArrayList<ByteBuffer> chunks = new CopyOnWriteArrayList<ByteBuffer>();
+
+    /**
+     * 每级槽位正在分配的内存块和下一个空闲位置，以及释放的槽位
+     */
+    private int[] currentChunk;
+    private int[] nextOffset;
+    private ArrayDeque<Long>[] freeSlots;
+
+    /**
+     * 路径到堆外数据位置的映射
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong slotBytes = new AtomicLong();
+
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    private final ListenerContainer<PathChildrenCacheListener> listeners = new ListenerContainer<PathChildrenCacheListener>();
+
+    private final static byte[] EMPTY = new byte[0];
+
+    /**
+     * 一个子节点数据在堆外的位置，创建后不再修改
+     */
+    private static class Entry {
+        /**
+         * 高32位为内存块序号，低32位为块内偏移
+         */
+        final long address;
+        final int length;
+        /**
+         * 槽位级别，数据不在堆外时为-1
+         */
+        final int slotClass;
+        final int version;
+        /**
+         * 不在堆外的数据：空数据或超过chunkSize的数据
+         */
+        final byte[] heap;
+
+        Entry(long address, int length, int slotClass, int version) {
+            this.address = address;
+            this.length = length;
+            this.slotClass = slotClass;
+            this.version = version;
+            this.heap = null;
+        }
+
+        Entry(byte[] heap, int version) {
+            this.address = -1;
+            this.length = heap.length;
+            this.slotClass = -1;
+            this.version = version;
+            this.heap = heap;
+        }
+    }
+
+    private final PathChildrenCacheListener pathChildrenCacheListener = new PathChildrenCacheListener() {
+        public void childEvent(CuratorFramework client, final PathChildrenCacheEvent event) throws Exception {
+            try {
+                switch (event.getType()) {
+                    case CHILD_ADDED:
+                    case CHILD_UPDATED:
+                        store(event.getData());
+                        break;
+                    case CHILD_REMOVED:
+                        remove(event.getData().getPath());
+                        break;
+                    case INITIALIZED:
+                        logger.info("off heap cache {} initialized with {} children", path, entries.size());
+                        initialized.countDown();
+                        break;
+                    default:
+                        logger.info("off heap cache {} connection state {}", path, event.getType());
+                }
+            } catch (Exception e) {
+                //存储失败不影响下游监听者收到事件
+                logger.error("store {} event of off heap cache {} error!", event.getType(), path, e);
+            }
+            listeners.forEach(new Function<PathChildrenCacheListener, Void>() {
+                public Void apply(PathChildrenCacheListener listener) {
+                    try {
+                        listener.childEvent(OffHeapChildrenCache.this.client, event);
+                    } catch (Exception e) {
+                        logger.error("listener of off heap cache {} error!", path, e);
+                    }
+                    return null;
+                }
+            });
+        }
+    };
+
+    /**
+     * @param client 使用curator框架的zookeeper连接
+     * @param path   父节点路径
+     */
+    public OffHeapChildrenCache(CuratorFramework client, String path) {
+        this.client = client;
+        this.path = path;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void init() {
+        int classes = slotClassOf(chunkSize) + 1;
+        currentChunk = new int[classes];
+        nextOffset = new int[classes];
+        freeSlots = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            currentChunk[i] = -1;
+            freeSlots[i] = new ArrayDeque<Long>();
+        }
+        if (mappedFile != null) {
+            try {
+                randomAccessFile = new RandomAccessFile(mappedFile, "rw");
+            } catch (IOException e) {
+                throw new IllegalStateException("open mapped file " + mappedFile + " error", e);
+            }
+        }
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        pathChildrenCache = new PathChildrenCache(client, path, true);
+        pathChildrenCache.getListenable().addListener(pathChildrenCacheListener);
+        try {
+            pathChildrenCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+            if (!initialized.await(initTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("load children of " + path + " timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("load children of " + path + " interrupted", e);
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("start off heap cache of " + path + " error", e);
+        }
+    }
+
+    /**
+     * 关闭PathChildrenCache和映射文件。直接内存在ByteBuffer被回收时释放，关闭后不能再读取
+     */
+    public void close() {
+        if (pathChildrenCache != null) {
+            try {
+                pathChildrenCache.close();
+            } catch (IOException e) {
+                logger.error("close path children cache of {} error!", path, e);
+            }
+        }
+        entries.clear();
+        chunks.clear();
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                logger.error("close mapped file {} error!", mappedFile, e);
+            }
+        }
+    }
+
+    /**
+     * 在事件线程中执行：数据复制到新的槽位后发布，再释放旧槽位，最后清除PathChildrenCache中的byte[]
+     */
+    private void store(ChildData childData) {
+        //事件中的数据是刚读取的，null表示节点数据为null
+        byte[] data = childData.getData();
+        if (data == null || data.length == 0 || data.length > chunkSize) {
+            if (data != null && data.length > chunkSize) {
+                logger.error("data of {} is {} bytes, larger than chunk size {}, keep it on heap",
+                        childData.getPath(), data.length, chunkSize);
+            }
+            Entry previous = entries.put(childData.getPath(), new Entry(data == null ? EMPTY : data, childData.getStat().getVersion()));
+            if (previous != null) {
+                free(previous);
+            }
+            pathChildrenCache.clearDataBytes(childData.getPath(), childData.getStat().getVersion());
+            return;
+        }
+        int slotClass = slotClassOf(data.length);
+        long address = allocate(slotClass);
+        ByteBuffer target = chunks.get((int) (address >>> 32)).duplicate();
+        target.position((int) address);
+        target.put(data);
+        Entry entry = new Entry(address, data.length, slotClass, childData.getStat().getVersion());
+        Entry previous = entries.put(childData.getPath(), entry);
+        payloadBytes.addAndGet(data.length);
+        slotBytes.addAndGet(1L << (slotClass + MIN_SLOT_SHIFT));
+        if (previous != null) {
+            free(previous);
+        }
+        pathChildrenCache.clearDataBytes(childData.getPath(), childData.getStat().getVersion());
+    }
+
+    private void remove(String childPath) {
+        Entry previous = entries.remove(childPath);
+        if (previous != null) {
+            free(previous);
+        }
+    }
+
+    private long allocate(int slotClass) {
+        Long free = freeSlots[slotClass].pollFirst();
+        if (free != null) {
+            return free;
+        }
+        int slotSize = 1 << (slotClass + MIN_SLOT_SHIFT);
+        if (currentChunk[slotClass] < 0 || nextOffset[slotClass] + slotSize > chunkSize) {
+            currentChunk[slotClass] = newChunk();
+            nextOffset[slotClass] = 0;
+        }
+        long address = ((long) currentChunk[slotClass] << 32) | nextOffset[slotClass];
+        nextOffset[slotClass] += slotSize;
+        return address;
+    }
+
+    private void free(Entry entry) {
+        if (entry.heap != null) {
+            return;
+        }
+        payloadBytes.addAndGet(-entry.length);
+        slotBytes.addAndGet(-(1L << (entry.slotClass + MIN_SLOT_SHIFT)));
+        freeSlots[entry.slotClass].offerLast(entry.address);
+    }
+
+    private int newChunk() {
+        ByteBuffer chunk;
+        if (randomAccessFile == null) {
+            chunk = ByteBuffer.allocateDirect(chunkSize);
+        } else {
+            try {
+                chunk = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * chunkSize, chunkSize);
+            } catch (IOException e) {
+                throw new IllegalStateException("map chunk " + chunks.size() + " of " + mappedFile + " error", e);
+            }
+        }
+        chunks.add(chunk);
+        return chunks.size() - 1;
+    }
+
+    /**
+     * @return 能容纳length字节的最小槽位级别
+     */
+    private static int slotClassOf(int length) {
+        if (length <= 1 << MIN_SLOT_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SLOT_SHIFT;
+    }
+
+    private ByteBuffer view(Entry entry) {
+        if (entry.heap != null) {
+            return ByteBuffer.wrap(entry.heap).asReadOnlyBuffer();
+        }
+        ByteBuffer buffer = chunks.get((int) (entry.address >>> 32)).duplicate();
+        int offset = (int) entry.address;
+        buffer.limit(offset + entry.length);
+        buffer.position(offset);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @param childPath 子节点完整路径
+     * @return 子节点数据的只读视图，不复制，在该子节点下一次变化前有效；子节点不存在时返回null
+     */
+    public ByteBuffer getData(String childPath) {
+        Entry entry = entries.get(childPath);
+        return entry == null ? null : view(entry);
+    }
+
+    /**
+     * 复制子节点数据到堆内，复制期间数据变化时重新复制
+     *
+     * @param childPath 子节点完整路径
+     * @return 子节点数据，不存在时返回null
+     */
+    public byte[] copyData(String childPath) {
+        while (true) {
+            Entry entry = entries.get(childPath);
+            if (entry == null) {
+                return null;
+            }
+            byte[] data = new byte[entry.length];
+            view(entry).get(data);
+            if (entries.get(childPath) == entry) {
+                return data;
+            }
+        }
+    }
+
+    /**
+     * @return 子节点的Stat，子节点不存在时返回null
+     */
+    public Stat getStat(String childPath) {
+        ChildData childData = pathChildrenCache.getCurrentData(childPath);
+        return childData == null ? null : childData.getStat();
+    }
+
+    /**
+     * @return 当前缓存的子节点数据版本，子节点不存在时返回-1
+     */
+    public int getVersion(String childPath) {
+        Entry entry = entries.get(childPath);
+        return entry == null ? -1 : entry.version;
+    }
+
+    /**
+     * @return PathChildrenCache中的子节点，数据已清除
+     */
+    public List<ChildData> getCurrentData() {
+        return pathChildrenCache.getCurrentData();
+    }
+
+    /**
+     * 添加的监听者在数据复制到堆外之后回调，事件中的数据是复制前的byte[]
+     */
+    public ListenerContainer<PathChildrenCacheListener> getListenable() {
+        return listeners;
+    }
+
+    /**
+     * 设置堆外内存块的大小，也是放在堆外的单个子节点数据的上限，需在init之前调用
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1 << MIN_SLOT_SHIFT || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("chunk size must be a power of 2 not less than " + (1 << MIN_SLOT_SHIFT) + ": " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 使用内存映射文件存放数据，需在init之前调用。文件只作为缓存，每次启动重新写入
+     */
+    public void setMappedFile(File mappedFile) {
+        this.mappedFile = mappedFile;
+    }
+
+    public void setInitTimeoutMillis(long initTimeoutMillis) {
+        this.initTimeoutMillis = initTimeoutMillis;
+    }
+
+    /**
+     * @return 缓存的子节点数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return 缓存在堆外的数据总字节数
+     */
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    /**
+     * @return 正在使用的槽位总字节数，与getPayloadBytes的差为槽位内的浪费
+     */
+    public long getUsedOffHeapBytes() {
+        return slotBytes.get();
+    }
+
+    /**
+     * @return 堆内元数据的估算字节数，按每个子节点的固定开销加路径长度计算，包括留在堆内的数据
+     */
+    public long getEstimatedHeapBytes() {
+        long bytes = 0;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            bytes += HEAP_BYTES_PER_CHILD + entry.getKey().length();
+            if (entry.getValue().heap != null) {
+                bytes += entry.getValue().length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 已分配的堆外内存字节数
+     */
+    public long getReservedOffHeapBytes() {
+        return (long) chunks.size() * chunkSize;
+    }
+}
@@ -1,11 +1,58 @@
 package win.hgfdodo.framework.utils;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
+ * 分布式资源池：同一project的所有进程共享resourceNum个资源
+ * <p>
+ * 使用zookeeper的InterProcessSemaphoreV2实现，每个lease对应一个资源。
+ * 开启批量（batchSize大于1）后，本地没有空闲lease时一次从zookeeper申请多个lease缓存在进程内，
+ * 本地线程release的lease先放回本地缓存供其他线程使用，大部分acquire/release不访问zookeeper；
+ * 本地空闲超过idleMillis的lease归还给zookeeper，供其他进程使用。
+ * 连接断开（SUSPENDED或LOST）时本地缓存的lease全部归还，断开前申请的lease释放时也不再放入缓存：
+ * 会话过期后lease节点已被删除，继续使用会使整个集群持有的资源超过resourceNum。
+ * <p>
+ * 申请时可以指定优先级（0-99，越大越优先）。开启setPrioritized后，向zookeeper申请前先在resourcepoll/project-queue下
+ * 按优先级排队：节点名为"两位倒序优先级-序号"，排序后优先级高的在前，同优先级先到先得；
+ * 只有排在第一位的申请者向信号量申请，其他申请者只监听前一位，因此整个集群按优先级发放资源，低优先级的突发请求不会饿死高优先级请求。
+ * 排在第一位的申请者正在等待时不会被后到的高优先级请求抢占。本地缓存的lease不区分优先级。
+ * 每个优先级的等待时长和本地等待数可通过getWaitHistograms、getLocalQueueDepth查看。
+ * <p>
+ * 使用说明：
+ * 1. 使用project、节点名、zookeeper连接和资源数实例化，需要批量时调用setBatchSize，然后调用init
+ * 2. try (ResourcePool.Lease lease = pool.acquire()) { ... } 使用资源，或tryAcquire指定等待时间
+ * 3. 退出前调用close，本地缓存的lease全部归还
+ *
  * @author guangfuhe 2017/8/28
  */
 public class ResourcePool {
@@ -23,16 +70,550 @@ public class ResourcePool {
 
     private CuratorFramework client;
 
+    private InterProcessSemaphoreV2 semaphore;
+
+    /**
+     * 本地没有空闲lease时一次从zookeeper申请的lease个数，1表示不批量，release时直接归还
+     */
+    private int batchSize = 1;
+
+    /**
+     * 本地空闲lease保留的时长，超过后归还给zookeeper
+     */
+    private long idleMillis = 1000;
+
+    /**
+     * 本地空闲的lease，最近释放的在队首，队尾的空闲时间最长
+     */
+    private final LinkedBlockingDeque<IdleLease> idle = new LinkedBlockingDeque<IdleLease>();
+
+    /**
+     * 同一时刻只有一个线程向zookeeper申请，其他线程等待本地释放或申请到的lease
+     */
+    private final AtomicBoolean fetching = new AtomicBoolean(false);
+
+    private ScheduledExecutorService trimExecutor;
+
+    /**
+     * 向zookeeper申请lease的次数和申请到的lease数
+     */
+    private final AtomicLong remoteAcquires = new AtomicLong();
+    private final AtomicLong remoteLeases = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * 连接断开的次数，缓存的lease只在申请后没有断开过连接时可以再次借出
+     */
+    private final AtomicInteger connectionEpoch = new AtomicInteger();
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if ((newState == ConnectionState.SUSPENDED || newState == ConnectionState.LOST) && !closed) {
+                connectionEpoch.incrementAndGet();
+                logger.warn("connection of {} is {}, return {} idle leases", projectName, newState, idle.size());
+                //删除lease节点会按重试策略等待重连，不能阻塞连接状态线程
+                trimExecutor.execute(new Runnable() {
+                    public void run() {
+                        trim(Long.MAX_VALUE);
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * 未指定优先级时使用的优先级
+     */
+    public final static int DEFAULT_PRIORITY = 50;
+    public final static int MAX_PRIORITY = 99;
+
+    /**
+     * 是否按优先级在zookeeper中排队
+     */
+    private boolean prioritized = false;
+
+    /**
+     * 优先级排队的父节点：root/project-queue
+     */
+    private String queuePath;
+
+    /**
+     * 每个优先级的等待时长，包括从本地缓存取得的
+     */
+    private final ConcurrentHashMap<Integer, LatencyHistogram> waitHistograms = new ConcurrentHashMap<Integer, LatencyHistogram>();
+
+    /**
+     * 每个优先级本进程正在等待的申请数
+     */
+    private final ConcurrentHashMap<Integer, AtomicInteger> waiting = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    /**
+     * 超时未申请到的次数
+     */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * 本地缓存的空闲lease
+     */
+    private static class IdleLease {
+        final org.apache.curator.framework.recipes.locks.Lease lease;
+        final long idleSince;
+        /**
+         * 申请lease时的connectionEpoch
+         */
+        final int epoch;
+
+        IdleLease(org.apache.curator.framework.recipes.locks.Lease lease, long idleSince, int epoch) {
+            this.lease = lease;
+            this.idleSince = idleSince;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * 持有的资源，close时释放，一个Lease只能释放一次
+     */
+    public final class Lease implements Closeable {
+        private final org.apache.curator.framework.recipes.locks.Lease lease;
+        private final int epoch;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(org.apache.curator.framework.recipes.locks.Lease lease, int epoch) {
+            this.lease = lease;
+            this.epoch = epoch;
+        }
+
+        /**
+         * @return 对应的zookeeper节点名
+         */
+        public String getNodeName() {
+            return lease.getNodeName();
+        }
+
+        public void close() {
+            release(this);
+        }
+    }
+
     public ResourcePool(String project, String nodeName, CuratorFramework client, int resourceNum) {
         this.projectName = project;
         this.nodeName = nodeName;
         this.projectPath = root + "/" + project;
+        this.queuePath = projectPath + "-queue";
         this.client = client;
         this.resourceNum = resourceNum;
     }
 
     public void init() {
-        this.client.start();
-        InterProcessSemaphoreV2 semaphoreV2 = new InterProcessSemaphoreV2(client, projectPath, resourceNum);
+        if (this.client.getState() == CuratorFrameworkState.LATENT) {
+            this.client.start();
+        }
+        this.semaphore = new InterProcessSemaphoreV2(client, projectPath, resourceNum);
+        this.semaphore.setNodeData(nodeName.getBytes());
+        if (batchSize > 1) {
+            client.getConnectionStateListenable().addListener(connectionStateListener);
+            trimExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ResourcePool-trim-" + projectName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1, idleMillis / 2);
+            trimExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    trim(System.currentTimeMillis() - idleMillis);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 归还本地缓存的所有lease，已借出的lease在release时直接归还
+     */
+    public void close() {
+        closed = true;
+        if (trimExecutor != null) {
+            trimExecutor.shutdown();
+            client.getConnectionStateListenable().removeListener(connectionStateListener);
+        }
+        trim(Long.MAX_VALUE);
+    }
+
+    /**
+     * 使用默认优先级申请一个资源，阻塞直到申请成功
+     */
+    public Lease acquire() {
+        return acquire(DEFAULT_PRIORITY);
+    }
+
+    /**
+     * 按优先级申请一个资源，阻塞直到申请成功
+     *
+     * @param priority 优先级，0-99，越大越优先
+     */
+    public Lease acquire(int priority) {
+        Lease lease = tryAcquire(priority, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (lease == null) {
+            throw new IllegalStateException("acquire resource of " + projectName + " failed");
+        }
+        return lease;
+    }
+
+    /**
+     * 使用默认优先级在指定时间内申请一个资源
+     *
+     * @return 申请到的资源，超时返回null
+     */
+    public Lease tryAcquire(long time, TimeUnit unit) {
+        return tryAcquire(DEFAULT_PRIORITY, time, unit);
+    }
+
+    /**
+     * 按优先级在指定时间内申请一个资源，并记录等待时长
+     *
+     * @param priority 优先级，0-99，越大越优先
+     * @return 申请到的资源，超时返回null
+     */
+    public Lease tryAcquire(int priority, long time, TimeUnit unit) {
+        if (priority < 0 || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("priority must be in [0, " + MAX_PRIORITY + "]: " + priority);
+        }
+        AtomicInteger depth = waiting.get(priority);
+        if (depth == null) {
+            waiting.putIfAbsent(priority, new AtomicInteger());
+            depth = waiting.get(priority);
+        }
+        long begin = System.nanoTime();
+        depth.incrementAndGet();
+        try {
+            Lease lease = doAcquire(priority, time, unit);
+            if (lease == null) {
+                timeouts.incrementAndGet();
+            }
+            return lease;
+        } finally {
+            depth.decrementAndGet();
+            LatencyHistogram histogram = waitHistograms.get(priority);
+            if (histogram == null) {
+                waitHistograms.putIfAbsent(priority, new LatencyHistogram());
+                histogram = waitHistograms.get(priority);
+            }
+            histogram.record(System.nanoTime() - begin);
+        }
+    }
+
+    private Lease doAcquire(final int priority, long time, TimeUnit unit) {
+        if (closed) {
+            throw new IllegalStateException("resource pool of " + projectName + " is closed");
+        }
+        long waitMillis = unit.toMillis(time);
+        final long deadline = waitMillis >= Long.MAX_VALUE / 2 ? Long.MAX_VALUE : System.currentTimeMillis() + waitMillis;
+        try {
+            final int epoch = connectionEpoch.get();
+            if (batchSize <= 1) {
+                org.apache.curator.framework.recipes.locks.Lease lease = inQueue(priority, deadline, new RemoteAcquire() {
+                    public org.apache.curator.framework.recipes.locks.Lease acquire(long waitMillis) throws Exception {
+                        return remoteAcquire(waitMillis);
+                    }
+                });
+                return lease == null ? null : new Lease(lease, epoch);
+            }
+            while (true) {
+                IdleLease cached = pollIdle(0);
+                if (cached != null) {
+                    return new Lease(cached.lease, cached.epoch);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining < 0) {
+                    return null;
+                }
+                if (fetching.compareAndSet(false, true)) {
+                    try {
+                        //排队时一次等到超时，避免反复排队失去位置；不排队时定期回来检查本地释放的lease
+                        final long slice = prioritized ? remaining : Math.min(remaining, 100);
+                        final int fetchEpoch = connectionEpoch.get();
+                        org.apache.curator.framework.recipes.locks.Lease lease = inQueue(priority, System.currentTimeMillis() + slice, new RemoteAcquire() {
+                            public org.apache.curator.framework.recipes.locks.Lease acquire(long waitMillis) throws Exception {
+                                return fetch(Math.min(waitMillis, slice), fetchEpoch);
+                            }
+                        });
+                        if (lease != null) {
+                            return new Lease(lease, fetchEpoch);
+                        }
+                    } finally {
+                        fetching.set(false);
+                    }
+                } else {
+                    //其他线程正在向zookeeper申请，等待本地释放或申请到的lease
+                    cached = pollIdle(Math.min(remaining, 10));
+                    if (cached != null) {
+                        return new Lease(cached.lease, cached.epoch);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("acquire resource of " + projectName + " interrupted", e);
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("acquire resource of " + projectName + " error", e);
+        }
+    }
+
+    /**
+     * 取出一个本地缓存的lease，申请后断开过连接的lease直接归还
+     *
+     * @param waitMillis 没有缓存的lease时等待的时长
+     */
+    private IdleLease pollIdle(long waitMillis) throws InterruptedException {
+        while (true) {
+            IdleLease cached = waitMillis > 0 ? idle.pollFirst(waitMillis, TimeUnit.MILLISECONDS) : idle.pollFirst();
+            if (cached == null || cached.epoch == connectionEpoch.get()) {
+                return cached;
+            }
+            semaphore.returnLease(cached.lease);
+        }
+    }
+
+    /**
+     * 释放资源：批量模式下放回本地缓存，否则直接归还给zookeeper。申请后断开过连接的lease直接归还
+     */
+    public void release(Lease lease) {
+        if (!lease.released.compareAndSet(false, true)) {
+            return;
+        }
+        if (batchSize > 1 && !closed && lease.epoch == connectionEpoch.get()) {
+            idle.offerFirst(new IdleLease(lease.lease, System.currentTimeMillis(), lease.epoch));
+        } else {
+            semaphore.returnLease(lease.lease);
+        }
+    }
+
+    /**
+     * 向zookeeper申请lease的方式，waitMillis为最长等待时间
+     */
+    private interface RemoteAcquire {
+        org.apache.curator.framework.recipes.locks.Lease acquire(long waitMillis) throws Exception;
+    }
+
+    /**
+     * 按优先级排队，排到第一位后执行申请；未开启优先级排队时直接申请
+     *
+     * @return 申请到的lease，超时返回null
+     */
+    private org.apache.curator.framework.recipes.locks.Lease inQueue(int priority, long deadline, RemoteAcquire acquire) throws Exception {
+        if (!prioritized) {
+            return acquire.acquire(remaining(deadline));
+        }
+        String node = client.create().creatingParentContainersIfNeeded()
+                .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                .forPath(queuePath + "/" + String.format("%02d", MAX_PRIORITY - priority) + "-");
+        String self = ZKPaths.getNodeFromPath(node);
+        Exception failure = null;
+        try {
+            while (true) {
+                List<String> queue = client.getChildren().forPath(queuePath);
+                Collections.sort(queue);
+                int index = queue.indexOf(self);
+                if (index < 0) {
+                    throw new IllegalStateException("queue node " + node + " of " + projectName + " is lost");
+                }
+                long remaining = remaining(deadline);
+                if (index == 0) {
+                    return acquire.acquire(remaining);
+                }
+                if (remaining <= 0) {
+                    return null;
+                }
+                final CountDownLatch predecessorGone = new CountDownLatch(1);
+                Stat stat = client.checkExists().usingWatcher(new CuratorWatcher() {
+                    public void process(WatchedEvent event) throws Exception {
+                        predecessorGone.countDown();
+                    }
+                }).forPath(queuePath + "/" + queue.get(index - 1));
+                if (stat != null && !predecessorGone.await(Math.min(remaining, Long.MAX_VALUE / 2), TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            }
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            leaveQueue(node, failure);
+        }
+    }
+
+    /**
+     * 删除排队节点，删除失败不能覆盖申请的结果或异常
+     *
+     * @param failure 排队或申请时抛出的异常，删除失败时作为其suppressed异常
+     */
+    private void leaveQueue(String node, Exception failure) {
+        try {
+            client.delete().guaranteed().forPath(node);
+        } catch (KeeperException.NoNodeException e) {
+            logger.debug("queue node {} is already removed", node);
+        } catch (Exception e) {
+            if (failure != null) {
+                failure.addSuppressed(e);
+            } else {
+                //guaranteed删除在后台继续重试，节点最迟随会话过期删除
+                logger.warn("remove queue node {} of {} error, retry in background", node, projectName, e);
+            }
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * 批量申请：先尝试不等待地一次申请batchSize个，不足时等待申请一个，多出的放入本地缓存
+     */
+    private org.apache.curator.framework.recipes.locks.Lease fetch(long waitMillis, int epoch) throws Exception {
+        remoteAcquires.incrementAndGet();
+        Collection<org.apache.curator.framework.recipes.locks.Lease> leases = semaphore.acquire(batchSize, 0, TimeUnit.MILLISECONDS);
+        if (leases == null) {
+            org.apache.curator.framework.recipes.locks.Lease lease = semaphore.acquire(waitMillis, TimeUnit.MILLISECONDS);
+            if (lease != null) {
+                remoteLeases.incrementAndGet();
+            }
+            return lease;
+        }
+        remoteLeases.addAndGet(leases.size());
+        org.apache.curator.framework.recipes.locks.Lease first = null;
+        long now = System.currentTimeMillis();
+        for (org.apache.curator.framework.recipes.locks.Lease lease : leases) {
+            if (first == null) {
+                first = lease;
+            } else {
+                idle.offerLast(new IdleLease(lease, now, epoch));
+            }
+        }
+        return first;
+    }
+
+    private org.apache.curator.framework.recipes.locks.Lease remoteAcquire(long waitMillis) throws Exception {
+        remoteAcquires.incrementAndGet();
+        org.apache.curator.framework.recipes.locks.Lease lease = waitMillis >= Long.MAX_VALUE / 2
+                ? semaphore.acquire() : semaphore.acquire(waitMillis, TimeUnit.MILLISECONDS);
+        if (lease != null) {
+            remoteLeases.incrementAndGet();
+        }
+        return lease;
+    }
+
+    /**
+     * 归还空闲时间早于idleBefore的本地lease
+     */
+    private void trim(long idleBefore) {
+        List<org.apache.curator.framework.recipes.locks.Lease> expired = new ArrayList<org.apache.curator.framework.recipes.locks.Lease>();
+        while (true) {
+            IdleLease last = idle.peekLast();
+            if (last == null || last.idleSince > idleBefore) {
+                break;
+            }
+            if (idle.removeLastOccurrence(last)) {
+                expired.add(last.lease);
+            }
+        }
+        if (!expired.isEmpty()) {
+            logger.debug("return {} idle leases of {}", expired.size(), projectName);
+            semaphore.returnAll(expired);
+        }
+    }
+
+    /**
+     * 设置批量申请的lease个数，需在init之前调用
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0 || batchSize > resourceNum) {
+            throw new IllegalArgumentException("batch size must be in [1, " + resourceNum + "]: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 设置本地空闲lease归还给zookeeper前保留的时长，需在init之前调用
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * 开启按优先级排队，需在init之前调用。同一project的所有进程应使用相同的设置，未排队的申请不受优先级约束
+     */
+    public void setPrioritized(boolean prioritized) {
+        this.prioritized = prioritized;
+    }
+
+    /**
+     * @return 每个优先级的等待时长直方图，只包含出现过的优先级
+     */
+    public Map<Integer, LatencyHistogram> getWaitHistograms() {
+        return Collections.unmodifiableMap(new TreeMap<Integer, LatencyHistogram>(waitHistograms));
+    }
+
+    /**
+     * @return 每个优先级本进程正在等待的申请数
+     */
+    public Map<Integer, Integer> getLocalQueueDepth() {
+        Map<Integer, Integer> depth = new TreeMap<Integer, Integer>();
+        for (Map.Entry<Integer, AtomicInteger> entry : waiting.entrySet()) {
+            depth.put(entry.getKey(), entry.getValue().get());
+        }
+        return depth;
+    }
+
+    /**
+     * 读取zookeeper中的排队情况，只在开启优先级排队时有数据
+     *
+     * @return 每个优先级整个集群排队的申请数
+     */
+    public Map<Integer, Integer> getClusterQueueDepth() {
+        Map<Integer, Integer> depth = new TreeMap<Integer, Integer>();
+        try {
+            for (String child : client.getChildren().forPath(queuePath)) {
+                int priority = MAX_PRIORITY - Integer.parseInt(child.substring(0, 2));
+                Integer count = depth.get(priority);
+                depth.put(priority, count == null ? 1 : count + 1);
+            }
+        } catch (KeeperException.NoNodeException e) {
+            logger.debug("no queue of {}", projectName);
+        } catch (Exception e) {
+            throw new IllegalStateException("read queue of " + projectName + " error", e);
+        }
+        return depth;
+    }
+
+    /**
+     * @return 超时未申请到资源的次数
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return 本地缓存的空闲lease数
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return 向zookeeper申请的次数
+     */
+    public long getRemoteAcquireCount() {
+        return remoteAcquires.get();
+    }
+
+    /**
+     * @return 从zookeeper申请到的lease总数
+     */
+    public long getRemoteLeaseCount() {
+        return remoteLeases.get();
     }
 }
@@ -0,0 +1,213 @@
+package win.hgfdodo.framework.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IdGenerator的本地区间日志
+ * <p>
+ * 使用内存映射的小文件记录当前区间、预取的下一个区间，以及当前区间已发出ID的上限（高水位）。
+ * 写入只是内存写，由后台线程定期force到磁盘。进程重启后可以从高水位继续使用未用完的区间，不需要等待zookeeper。
+ * <p>
+ * 区间记录带校验值，写了一半的记录在恢复时被丢弃；高水位单独按8字节对齐写入，总是先于对应的ID发出。
+ * 文件使用文件锁，同一时刻只能被一个进程使用。
+ */
+final class SegmentJournal {
+    private final static Logger logger = LoggerFactory.getLogger(SegmentJournal.class);
+
+    private final static int MAGIC = 0x49444a31;
+    private final static int SIZE = 128;
+
+    private final static int MAGIC_OFFSET = 0;
+    private final static int ROOT_OFFSET = 4;
+    private final static int STRIPES_OFFSET = 8;
+    private final static int CURRENT_OFFSET = 16;
+    private final static int HIGH_WATER_OFFSET = 48;
+    private final static int RESERVED_OFFSET = 56;
+
+    /**
+     * 区间记录：start(8) allocatedAt(8) interval(4) stripe(4) checksum(8)
+     */
+    private final static int RECORD_CHECKSUM = 24;
+
+    /**
+     * 日志中记录的区间
+     */
+    static final class Record {
+        final long start;
+        final int interval;
+        final int stripe;
+        final long allocatedAt;
+
+        Record(long start, int interval, int stripe, long allocatedAt) {
+            this.start = start;
+            this.interval = interval;
+            this.stripe = stripe;
+            this.allocatedAt = allocatedAt;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileLock fileLock;
+    private final MappedByteBuffer buffer;
+    private final ScheduledExecutorService forceExecutor;
+    private volatile boolean dirty;
+
+    /**
+     * @param file                journal文件，不存在时创建
+     * @param root                IdGenerator的root，root不同的日志不会被恢复
+     * @param stripes             IdGenerator的计数节点个数，不同时日志不会被恢复
+     * @param forceIntervalMillis 定期force到磁盘的间隔
+     */
+    SegmentJournal(File file, String root, int stripes, long forceIntervalMillis) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("create directory " + parent + " failed");
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        this.fileLock = lock;
+        if (fileLock == null) {
+            raf.close();
+            throw new IOException("journal " + file + " is used by other process");
+        }
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC
+                || buffer.getInt(ROOT_OFFSET) != root.hashCode()
+                || buffer.getInt(STRIPES_OFFSET) != stripes) {
+            logger.info("journal {} is new or belongs to other config, reset it", file);
+            for (int i = 0; i < SIZE; i += 8) {
+                buffer.putLong(i, 0);
+            }
+            buffer.putInt(ROOT_OFFSET, root.hashCode());
+            buffer.putInt(STRIPES_OFFSET, stripes);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.force();
+        }
+
+        this.forceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IdGenerator-journal-" + SegmentJournal.this.file.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        forceExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (dirty) {
+                    dirty = false;
+                    force();
+                }
+            }
+        }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 记录的当前区间，无效时返回null
+     */
+    synchronized Record readCurrent() {
+        return readRecord(CURRENT_OFFSET);
+    }
+
+    /**
+     * @return 记录的预取区间，无效时返回null
+     */
+    synchronized Record readReserved() {
+        return readRecord(RESERVED_OFFSET);
+    }
+
+    synchronized long readHighWater() {
+        return buffer.getLong(HIGH_WATER_OFFSET);
+    }
+
+    /**
+     * 切换当前区间：先写区间记录，再把高水位置为区间起点，最后清除预取区间
+     */
+    synchronized void writeCurrent(long start, int interval, int stripe, long allocatedAt) {
+        writeRecord(CURRENT_OFFSET, start, interval, stripe, allocatedAt);
+        buffer.putLong(HIGH_WATER_OFFSET, start);
+        buffer.putLong(RESERVED_OFFSET + RECORD_CHECKSUM, 0);
+        dirty = true;
+    }
+
+    synchronized void writeReserved(long start, int interval, int stripe, long allocatedAt) {
+        writeRecord(RESERVED_OFFSET, start, interval, stripe, allocatedAt);
+        dirty = true;
+    }
+
+    /**
+     * 提高高水位，只增不减
+     */
+    synchronized void raiseHighWater(long highWater) {
+        if (highWater > buffer.getLong(HIGH_WATER_OFFSET)) {
+            buffer.putLong(HIGH_WATER_OFFSET, highWater);
+            dirty = true;
+        }
+    }
+
+    synchronized void force() {
+        buffer.force();
+    }
+
+    synchronized void close() {
+        forceExecutor.shutdown();
+        force();
+        try {
+            fileLock.release();
+            raf.close();
+        } catch (IOException e) {
+            logger.error("close journal {} error!", file, e);
+        }
+    }
+
+    private Record readRecord(int offset) {
+        long start = buffer.getLong(offset);
+        long allocatedAt = buffer.getLong(offset + 8);
+        int interval = buffer.getInt(offset + 16);
+        int stripe = buffer.getInt(offset + 20);
+        long checksum = buffer.getLong(offset + RECORD_CHECKSUM);
+        if (checksum == 0 || checksum != checksum(start, allocatedAt, interval, stripe)) {
+            return null;
+        }
+        return new Record(start, interval, stripe, allocatedAt);
+    }
+
+    private void writeRecord(int offset, long start, int interval, int stripe, long allocatedAt) {
+        buffer.putLong(offset + RECORD_CHECKSUM, 0);
+        buffer.putLong(offset, start);
+        buffer.putLong(offset + 8, allocatedAt);
+        buffer.putInt(offset + 16, interval);
+        buffer.putInt(offset + 20, stripe);
+        buffer.putLong(offset + RECORD_CHECKSUM, checksum(start, allocatedAt, interval, stripe));
+    }
+
+    private static long checksum(long start, long allocatedAt, int interval, int stripe) {
+        long h = MAGIC;
+        h = h * 0x9E3779B97F4A7C15L + start;
+        h = h * 0x9E3779B97F4A7C15L + allocatedAt;
+        h = h * 0x9E3779B97F4A7C15L + interval;
+        h = h * 0x9E3779B97F4A7C15L + stripe;
+        return h == 0 ? 1 : h;
+    }
+}
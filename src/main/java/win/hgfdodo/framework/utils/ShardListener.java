@@ -0,0 +1,25 @@
+package win.hgfdodo.framework.utils;
+
+import java.util.Set;
+
+/**
+ * ShardedAutoSwitch分片变化的回调
+ * <p>
+ * 成员加入或退出后重新分配分片，本实例只收到自己新增或失去的分片。
+ */
+public interface ShardListener {
+
+    /**
+     * 分片分配给本实例，回调时本实例已持有这些分片的owner节点
+     *
+     * @param shards 新分配的分片
+     */
+    void assigned(ShardedAutoSwitch autoSwitch, Set<Integer> shards);
+
+    /**
+     * 分片从本实例收回，回调返回后本实例才删除这些分片的owner节点，新的实例才能开始处理
+     *
+     * @param shards 收回的分片
+     */
+    void revoked(ShardedAutoSwitch autoSwitch, Set<Integer> shards);
+}
@@ -0,0 +1,418 @@
+package win.hgfdodo.framework.utils;
+
+import com.google.common.base.Function;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 分片的多活自动切换
+ * <p>
+ * AutoSwitch同一个project只有一个工作实例，其他实例空闲。ShardedAutoSwitch把project的工作分成固定的shards个分片，
+ * 所有存活的实例同时工作，各自处理分到的分片。
+ * <p>
+ * 实例在root-sharded/project/members下注册临时节点，分片按最高随机权重（rendezvous hashing）分配：
+ * 每个分片分给hash(成员, 分片)最大的成员。成员加入时只从其他成员拿走分给自己的分片，成员退出时只有它的分片被重新分配，
+ * 其余分片不移动。
+ * <p>
+ * 成员视图的变化到达各实例有先后，为避免同一分片同时被两个实例处理，实例开始处理分片前先创建临时节点root-sharded/project/owners/分片号，
+ * 节点被旧实例持有时等待其删除；旧实例在revoked回调之后删除节点。
+ * <p>
+ * 使用说明：
+ * 1. 使用zookeeper连接、project、成员名和分片数实例化，同一project的所有实例分片数必须相同
+ * 2. 通过getListenable注册ShardListener，调用init加入
+ * 3. 退出前调用close，分片立即交给其他成员
+ */
+public class ShardedAutoSwitch {
+    private final static Logger logger = LoggerFactory.getLogger(ShardedAutoSwitch.class);
+
+    private CuratorFramework client;
+
+    /**
+     * 默认的root目录
+     */
+    private String root = "/utils/autoswitch";
+
+    private String project;
+
+    /**
+     * 本实例的成员名，同一project下唯一
+     */
+    private String member;
+
+    /**
+     * 分片数
+     */
+    private int shards;
+
+    private String membersPath;
+
+    private String ownersPath;
+
+    private PathChildrenCache membersCache;
+
+    /**
+     * 本实例当前持有的分片
+     */
+    private final Set<Integer> owned = new TreeSet<Integer>();
+
+    /**
+     * 分配给本实例但owner节点仍被其他实例持有的分片
+     */
+    private final Set<Integer> pending = new TreeSet<Integer>();
+
+    private final ListenerContainer<ShardListener> listeners = new ListenerContainer<ShardListener>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * 等待中的分片owner节点被删除时重新分配。watch触发一次即失效，先移出pending，重新分配时claim再次设置监听
+     */
+    private final CuratorWatcher ownerWatcher = new CuratorWatcher() {
+        public void process(WatchedEvent event) throws Exception {
+            if (event.getType() == Watcher.Event.EventType.None) {
+                return;
+            }
+            ownerChanged(Integer.parseInt(ZKPaths.getNodeFromPath(event.getPath())));
+        }
+    };
+
+    private final PathChildrenCacheListener membersListener = new PathChildrenCacheListener() {
+        public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+            switch (event.getType()) {
+                case INITIALIZED:
+                case CHILD_ADDED:
+                case CHILD_REMOVED:
+                    rebalance();
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            switch (newState) {
+                /**
+                 * 无法确认仍持有分片，暂停处理所有分片，owner节点随会话保留
+                 */
+                case SUSPENDED:
+                case LOST:
+                    logger.warn(project + "-" + member + ": connection " + newState + ", revoke all shards");
+                    revokeAll(false);
+                    break;
+                /**
+                 * 会话过期后成员节点已被删除，重新注册；会话仍有效时owner节点仍属于本实例，重新分配时直接恢复
+                 */
+                case RECONNECTED:
+                    register();
+                    rebalance();
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * 使用默认root创建
+     *
+     * @param client  使用curator框架的zookeeper连接
+     * @param project 工程名
+     * @param member  本实例的成员名，同一project下唯一
+     * @param shards  分片数
+     */
+    public ShardedAutoSwitch(CuratorFramework client, String project, String member, int shards) {
+        this(client, "/utils/autoswitch", project, member, shards);
+    }
+
+    /**
+     * @param client  使用curator框架的zookeeper连接
+     * @param root    在zookeeper中的root路径
+     * @param project 工程名
+     * @param member  本实例的成员名，同一project下唯一
+     * @param shards  分片数
+     */
+    public ShardedAutoSwitch(CuratorFramework client, String root, String project, String member, int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        this.client = client;
+        this.root = root;
+        this.project = project;
+        this.member = member;
+        this.shards = shards;
+        this.membersPath = root + "-sharded/" + project + "/members";
+        this.ownersPath = root + "-sharded/" + project + "/owners";
+    }
+
+    public void init() {
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+        register();
+        membersCache = new PathChildrenCache(client, membersPath, false);
+        membersCache.getListenable().addListener(membersListener);
+        try {
+            membersCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+        } catch (Exception e) {
+            throw new IllegalStateException("watch members of " + project + " error", e);
+        }
+    }
+
+    /**
+     * 收回所有分片并退出，zookeeper连接由调用方关闭
+     */
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        try {
+            if (membersCache != null) {
+                membersCache.close();
+            }
+        } catch (Exception e) {
+            logger.error(project + "-" + member + ": close members cache error", e);
+        }
+        revokeAll(true);
+        try {
+            client.delete().forPath(membersPath + "/" + member);
+        } catch (Exception e) {
+            logger.error(project + "-" + member + ": delete member node error", e);
+        }
+    }
+
+    private void register() {
+        String path = membersPath + "/" + member;
+        try {
+            client.create().creatingParentContainersIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path);
+            logger.info(project + "-" + member + ": join as member " + path);
+        } catch (KeeperException.NodeExistsException e) {
+            logger.debug(project + "-" + member + ": member node exists");
+        } catch (Exception e) {
+            logger.error(project + "-" + member + ": register member " + path + " error", e);
+        }
+    }
+
+    /**
+     * 按当前成员重新计算本实例的分片：先收回不再属于本实例的分片，再认领新分到的分片
+     */
+    private synchronized void rebalance() {
+        if (closed || membersCache == null) {
+            return;
+        }
+        List<String> members = new ArrayList<String>();
+        for (ChildData data : membersCache.getCurrentData()) {
+            members.add(ZKPaths.getNodeFromPath(data.getPath()));
+        }
+        Set<Integer> target = new TreeSet<Integer>();
+        if (members.contains(member)) {
+            for (int shard = 0; shard < shards; shard++) {
+                if (member.equals(ownerOf(shard, members))) {
+                    target.add(shard);
+                }
+            }
+        }
+
+        Set<Integer> revoked = new TreeSet<Integer>(owned);
+        revoked.removeAll(target);
+        pending.retainAll(target);
+        if (!revoked.isEmpty()) {
+            owned.removeAll(revoked);
+            notifyRevoked(revoked);
+            for (Integer shard : revoked) {
+                release(shard);
+            }
+        }
+
+        Set<Integer> assigned = new TreeSet<Integer>();
+        for (Integer shard : target) {
+            if (!owned.contains(shard) && claim(shard)) {
+                pending.remove(shard);
+                assigned.add(shard);
+            }
+        }
+        if (!assigned.isEmpty()) {
+            owned.addAll(assigned);
+            notifyAssigned(assigned);
+        }
+        logger.info(project + "-" + member + ": members=" + members.size() + ", own " + owned.size()
+                + " shards, waiting for " + pending.size() + " shards");
+    }
+
+    private synchronized void ownerChanged(int shard) {
+        pending.remove(shard);
+        rebalance();
+    }
+
+    /**
+     * 创建分片的owner节点。节点属于其他会话时监听其删除，删除后重新分配
+     * <p>
+     * pending中的分片已设置监听，不重复设置；监听触发后分片移出pending，再次创建失败时重新设置
+     *
+     * @return 本实例是否持有分片
+     */
+    private boolean claim(int shard) {
+        String path = ownersPath + "/" + shard;
+        try {
+            client.create().creatingParentContainersIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path, member.getBytes());
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            try {
+                if (pending.add(shard)) {
+                    Stat stat = client.checkExists().usingWatcher(ownerWatcher).forPath(path);
+                    if (null == stat) {
+                        pending.remove(shard);
+                        return claim(shard);
+                    }
+                    if (stat.getEphemeralOwner() == client.getZookeeperClient().getZooKeeper().getSessionId()) {
+                        //重连后会话仍有效，节点仍属于本实例
+                        return true;
+                    }
+                }
+            } catch (Exception ex) {
+                pending.remove(shard);
+                logger.error(project + "-" + member + ": watch owner of shard " + shard + " error", ex);
+            }
+            return false;
+        } catch (Exception e) {
+            logger.error(project + "-" + member + ": claim shard " + shard + " error", e);
+            return false;
+        }
+    }
+
+    private void release(int shard) {
+        String path = ownersPath + "/" + shard;
+        try {
+            client.delete().forPath(path);
+        } catch (KeeperException.NoNodeException e) {
+            logger.debug(project + "-" + member + ": owner of shard " + shard + " is already removed");
+        } catch (Exception e) {
+            logger.error(project + "-" + member + ": release shard " + shard + " error", e);
+        }
+    }
+
+    /**
+     * 收回所有分片
+     *
+     * @param release 是否删除owner节点；连接断开时节点无法删除，随会话保留或过期
+     */
+    private synchronized void revokeAll(boolean release) {
+        pending.clear();
+        if (owned.isEmpty()) {
+            return;
+        }
+        Set<Integer> revoked = new TreeSet<Integer>(owned);
+        owned.clear();
+        notifyRevoked(revoked);
+        if (release) {
+            for (Integer shard : revoked) {
+                release(shard);
+            }
+        }
+    }
+
+    private void notifyAssigned(Set<Integer> shards) {
+        final Set<Integer> view = Collections.unmodifiableSet(shards);
+        logger.info(project + "-" + member + ": assigned shards " + view);
+        listeners.forEach(new Function<ShardListener, Void>() {
+            public Void apply(ShardListener listener) {
+                listener.assigned(ShardedAutoSwitch.this, view);
+                return null;
+            }
+        });
+    }
+
+    private void notifyRevoked(Set<Integer> shards) {
+        final Set<Integer> view = Collections.unmodifiableSet(shards);
+        logger.info(project + "-" + member + ": revoked shards " + view);
+        listeners.forEach(new Function<ShardListener, Void>() {
+            public Void apply(ShardListener listener) {
+                listener.revoked(ShardedAutoSwitch.this, view);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 按rendezvous hashing计算分片的所属成员：权重hash(成员, 分片)最大的成员
+     * <p>
+     * 结果只与成员集合有关，所有实例看到相同的成员时得到相同的分配。
+     *
+     * @return 所属成员，没有成员时返回null
+     */
+    public static String ownerOf(int shard, Collection<String> members) {
+        String owner = null;
+        long max = 0;
+        for (String member : members) {
+            long weight = weight(member, shard);
+            if (owner == null || weight > max || (weight == max && member.compareTo(owner) < 0)) {
+                owner = member;
+                max = weight;
+            }
+        }
+        return owner;
+    }
+
+    private static long weight(String member, int shard) {
+        //murmur3的64位finalizer，使相邻的分片号也能得到均匀的权重
+        long h = ((long) member.hashCode() << 32) ^ (shard & 0xffffffffL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return 本实例当前持有的分片
+     */
+    public synchronized Set<Integer> getAssignedShards() {
+        return Collections.unmodifiableSet(new TreeSet<Integer>(owned));
+    }
+
+    /**
+     * 注册分片变化监听者。addListener(listener, executor)可指定回调线程池，不指定时在zookeeper事件线程中回调。
+     * 指定线程池时revoked异步执行，owner节点可能在回调完成前被删除。
+     */
+    public Listenable<ShardListener> getListenable() {
+        return listeners;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getMember() {
+        return member;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+}
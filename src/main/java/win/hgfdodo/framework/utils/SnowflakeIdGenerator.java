@@ -0,0 +1,258 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.CreateMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 时间戳 + workerId + 序号方式生成ID
+ * <p>
+ * init时在root/workers下创建临时顺序节点，按节点序号得到workerId，节点随会话存在即持有该workerId。
+ * 之后生成ID完全在内存中完成，不再访问zookeeper。
+ * <p>
+ * ID由高到低为：41位毫秒时间戳（相对EPOCH） | 10位workerId | 12位序号，输出格式与IdGenerator相同的62进制。
+ * 连接断开（SUSPENDED）后即暂停生成：断开期间服务端可能已使会话过期、删除workerId节点，
+ * 其他进程可能已取得同一个workerId。直到重新连上并确认仍持有workerId或重新获取workerId后恢复生成。
+ */
+public class SnowflakeIdGenerator {
+    private final static Logger logger = LoggerFactory.getLogger(SnowflakeIdGenerator.class);
+
+    /**
+     * 时间戳起点 2017-09-01 00:00:00 UTC
+     */
+    public final static long EPOCH = 1504224000000L;
+
+    private final static int WORKER_BITS = 10;
+    private final static int SEQUENCE_BITS = 12;
+    public final static int MAX_WORKERS = 1 << WORKER_BITS;
+    private final static long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final static String WORKERS = "/workers";
+    private final static String WORKER_PREFIX = "worker-";
+
+    /**
+     * zookeeper的连接
+     */
+    private CuratorFramework client;
+    /**
+     * 使用zookeeper的路径
+     */
+    private String root;
+    /**
+     * 是否定长
+     */
+    private boolean fixedLength = true;
+    /**
+     * ID的长度，在启动ID固定长度时起作用
+     */
+    private int length = Base62.MAX_LENGTH;
+    /**
+     * 允许时钟回拨的最大毫秒数，回拨在该范围内时沿用上次的时间戳，超出时抛出异常
+     */
+    private long maxBackwardMillis = 5;
+
+    /**
+     * 当前持有的workerId，未持有时为-1
+     */
+    private volatile long workerId = -1;
+    /**
+     * 持有workerId的临时顺序节点
+     */
+    private volatile String workerPath;
+    /**
+     * 上次生成ID的时间戳和序号：高位为时间戳，低SEQUENCE_BITS位为序号
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            switch (newState) {
+                case SUSPENDED:
+                case LOST:
+                    if (workerId >= 0) {
+                        logger.warn("connection of {} {}, stop generating id until worker {} is confirmed", root, newState, workerId);
+                    }
+                    workerId = -1;
+                    break;
+                case RECONNECTED:
+                    if (workerId < 0) {
+                        lease();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    public SnowflakeIdGenerator(String connectString, String root) {
+        this.client = CuratorFrameworkFactory.builder()
+                .connectString(connectString)
+                .sessionTimeoutMs(6000)
+                .connectionTimeoutMs(6000)
+                .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                .build();
+        this.root = root;
+    }
+
+    public SnowflakeIdGenerator(CuratorFramework client, String root) {
+        this.client = client;
+        this.root = root;
+    }
+
+    public SnowflakeIdGenerator(CuratorFramework client, String root, boolean fixedLength, int length) {
+        this.client = client;
+        this.root = root;
+        this.fixedLength = fixedLength;
+        this.length = length;
+    }
+
+    /**
+     * 初始化zookeeper连接并获取workerId
+     */
+    public void init() {
+        if (client.getState() == CuratorFrameworkState.LATENT) {
+            client.start();
+        }
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+        lease();
+        if (workerId < 0) {
+            throw new IllegalStateException("lease worker id under " + root + " failed!");
+        }
+    }
+
+    /**
+     * 释放workerId
+     */
+    public void close() {
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        String path = workerPath;
+        workerId = -1;
+        if (path != null) {
+            try {
+                client.delete().guaranteed().forPath(path);
+            } catch (Exception e) {
+                logger.error("delete worker node {} error!", path, e);
+            }
+        }
+    }
+
+    /**
+     * 创建临时顺序节点并取得workerId
+     * <p>
+     * workerId为节点序号对MAX_WORKERS取模，与仍存活的其他节点冲突时删除本节点重新创建。
+     */
+    private synchronized void lease() {
+        try {
+            String current = workerPath;
+            if (current != null && client.checkExists().forPath(current) != null) {
+                workerId = workerIdOf(current);
+                logger.info("worker node {} still exists, keep worker id {}", current, workerId);
+                return;
+            }
+
+            for (int i = 0; i < MAX_WORKERS; i++) {
+                String path = client.create().creatingParentsIfNeeded()
+                        .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                        .forPath(root + WORKERS + "/" + WORKER_PREFIX);
+                long id = workerIdOf(path);
+                if (!conflicted(path, id)) {
+                    workerPath = path;
+                    workerId = id;
+                    logger.info("lease worker id {} by node {}", id, path);
+                    return;
+                }
+                client.delete().forPath(path);
+            }
+            logger.error("no free worker id under {}", root + WORKERS);
+        } catch (Exception e) {
+            logger.error("lease worker id under {} error!", root, e);
+        }
+    }
+
+    private boolean conflicted(String path, long id) throws Exception {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        List<String> children = client.getChildren().forPath(root + WORKERS);
+        for (String child : children) {
+            if (!child.equals(name) && workerIdOf(child) == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long workerIdOf(String path) {
+        //顺序节点的后缀为10位序号
+        return Long.parseLong(path.substring(path.length() - 10)) % MAX_WORKERS;
+    }
+
+    /**
+     * 生成ID
+     */
+    public String generateId() {
+        return Base62.toString(nextId(), fixedLength ? length : 0);
+    }
+
+    /**
+     * 生成ID的原始值，不做62进制编码
+     * <p>
+     * 无锁：通过CAS更新时间戳和序号。同一毫秒内序号用完时等待下一毫秒。
+     */
+    public long nextId() {
+        long worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("worker id of " + root + " is not leased!");
+        }
+        while (true) {
+            long prev = state.get();
+            long prevTimestamp = prev >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - EPOCH;
+            long next;
+            if (now > prevTimestamp) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                if (prevTimestamp - now > maxBackwardMillis) {
+                    throw new IllegalStateException("clock moved backwards " + (prevTimestamp - now) + "ms, refuse to generate id");
+                }
+                if ((prev & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                    //本毫秒序号用完，等待时钟走到下一毫秒
+                    Thread.yield();
+                    continue;
+                }
+                next = prev + 1;
+            }
+            if (state.compareAndSet(prev, next)) {
+                return ((next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS))
+                        | (worker << SEQUENCE_BITS)
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * 设置允许时钟回拨的最大毫秒数
+     */
+    public void setMaxBackwardMillis(long maxBackwardMillis) {
+        this.maxBackwardMillis = maxBackwardMillis;
+    }
+
+    /**
+     * @return 当前持有的workerId，未持有时为-1
+     */
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+}
@@ -0,0 +1,161 @@
+package win.hgfdodo.example.original;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import win.hgfdodo.framework.utils.TestZookeeper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较OriginalWatcher和PathChildrenCache监听大量节点时每个节点占用的内存和处理修改事件的速度。
+ * <p>
+ * 参数为zookeeper连接串和节点数，不传连接串时启动内嵌的TestingServer。
+ * 内存只统计启动监听前后的差值，使用内嵌服务器时包含服务端为watch增加的内存。
+ * 第一轮包含类加载等一次性开销，以第二轮结果为准。
+ */
+public class OriginalWatcherBenchmark {
+
+    private final static String ROOT = "/test/watcher";
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        ZooKeeper writer = connect(zookeeper.getConnectString());
+        try {
+            if (writer.exists("/test", false) == null) {
+                writer.create("/test", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            if (writer.exists(ROOT, false) == null) {
+                writer.create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            //已存在的节点忽略NodeExists
+            final CountDownLatch created = new CountDownLatch(nodes);
+            for (int i = 0; i < nodes; i++) {
+                writer.create(ROOT + "/node" + i, "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                        new AsyncCallback.StringCallback() {
+                            public void processResult(int rc, String path, Object ctx, String name) {
+                                created.countDown();
+                            }
+                        }, null);
+            }
+            created.await();
+
+            for (int round = 1; round <= 2; round++) {
+                System.out.println("round " + round);
+                benchmarkOriginalWatcher(zookeeper.getConnectString(), writer, nodes);
+                benchmarkPathChildrenCache(zookeeper, writer, nodes);
+            }
+        } finally {
+            writer.close();
+            zookeeper.close();
+        }
+    }
+
+    private static void benchmarkOriginalWatcher(String connectString, ZooKeeper writer, int nodes) throws Exception {
+        long before = TestZookeeper.usedMemory();
+        OriginalWatcher watcher = new OriginalWatcher(connectString);
+        final CountDownLatch added = new CountDownLatch(nodes);
+        final CountDownLatch updated = new CountDownLatch(nodes);
+        watcher.addListener(new OriginalWatcher.Listener() {
+            public void nodeAdded(String path, byte[] data, Stat stat) {
+                added.countDown();
+            }
+
+            public void nodeUpdated(String path, byte[] data, Stat stat) {
+                updated.countDown();
+            }
+
+            public void nodeRemoved(String path) {
+            }
+        });
+        long begin = System.nanoTime();
+        watcher.watch(ROOT);
+        added.await();
+        long loadNanos = System.nanoTime() - begin;
+        long memory = TestZookeeper.usedMemory() - before;
+
+        begin = System.nanoTime();
+        update(writer, nodes);
+        if (!updated.await(120, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(updated.getCount() + " updates are not received by OriginalWatcher");
+        }
+        report("OriginalWatcher", nodes, loadNanos, memory, System.nanoTime() - begin);
+        watcher.close();
+    }
+
+    private static void benchmarkPathChildrenCache(TestZookeeper zookeeper, ZooKeeper writer, int nodes) throws Exception {
+        long before = TestZookeeper.usedMemory();
+        CuratorFramework client = zookeeper.newClient();
+        client.start();
+        PathChildrenCache cache = new PathChildrenCache(client, ROOT, true);
+        final CountDownLatch initialized = new CountDownLatch(1);
+        final CountDownLatch updated = new CountDownLatch(nodes);
+        cache.getListenable().addListener(new PathChildrenCacheListener() {
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+                if (event.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
+                    initialized.countDown();
+                } else if (event.getType() == PathChildrenCacheEvent.Type.CHILD_UPDATED) {
+                    updated.countDown();
+                }
+            }
+        });
+        long begin = System.nanoTime();
+        cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+        initialized.await();
+        long loadNanos = System.nanoTime() - begin;
+        long memory = TestZookeeper.usedMemory() - before;
+
+        begin = System.nanoTime();
+        update(writer, nodes);
+        if (!updated.await(120, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(updated.getCount() + " updates are not received by PathChildrenCache");
+        }
+        report("PathChildrenCache", nodes, loadNanos, memory, System.nanoTime() - begin);
+        cache.close();
+        client.close();
+    }
+
+    /**
+     * 异步修改所有节点一次
+     */
+    private static void update(ZooKeeper writer, int nodes) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(nodes);
+        for (int i = 0; i < nodes; i++) {
+            writer.setData(ROOT + "/node" + i, String.valueOf(System.nanoTime()).getBytes(), -1, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    done.countDown();
+                }
+            }, null);
+        }
+        done.await();
+    }
+
+    private static void report(String name, int nodes, long loadNanos, long memory, long updateNanos) {
+        System.out.println(name + "\tnodes=" + nodes + "\tload=" + TimeUnit.NANOSECONDS.toMillis(loadNanos) + "ms"
+                + "\tbytes/node=" + memory / nodes
+                + "\tupdates/s=" + (long) (nodes * 1e9 / updateNanos));
+    }
+
+    private static ZooKeeper connect(String connectString) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zooKeeper = new ZooKeeper(connectString, 6000, new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        });
+        connected.await();
+        return zooKeeper;
+    }
+}
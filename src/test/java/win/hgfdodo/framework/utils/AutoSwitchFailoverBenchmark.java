@@ -0,0 +1,88 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较EPHEMERAL_NODE和CANDIDATE_QUEUE两种选举方式，在不同备用实例数下工作实例退出到新实例开始工作的时间。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class AutoSwitchFailoverBenchmark {
+
+    private final static int[] STANDBYS = {1, 5, 10, 20, 40};
+    private final static int FAILOVERS = 5;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+
+        try {
+            for (AutoSwitch.ElectionMode mode : AutoSwitch.ElectionMode.values()) {
+                for (int standbys : STANDBYS) {
+                    run(zookeeper, mode, standbys);
+                }
+            }
+        } finally {
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * 启动standbys+FAILOVERS个实例，依次关闭工作实例的连接，输出接替的平均时间、
+     * 各接替实例记录的takeover耗时和竞争创建失败的次数
+     */
+    private static void run(TestZookeeper zookeeper, AutoSwitch.ElectionMode mode, int standbys) throws Exception {
+        String project = mode.name().toLowerCase() + "-" + standbys;
+        final List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        final List<AutoSwitch> autoSwitches = new ArrayList<AutoSwitch>();
+        final BlockingQueue<Integer> actives = new LinkedBlockingQueue<Integer>();
+        for (int i = 0; i < standbys + FAILOVERS; i++) {
+            CuratorFramework client = zookeeper.newClient();
+            clients.add(client);
+            final AutoSwitch autoSwitch = new AutoSwitch(client, "/benchmark/autoswitch", project, "node" + i);
+            autoSwitch.setElectionMode(mode);
+            autoSwitches.add(autoSwitch);
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    autoSwitch.init();
+                    actives.add(index);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int active = actives.take();
+        //等待所有实例都进入备用状态
+        Thread.sleep(1000);
+        long total = 0;
+        for (int i = 0; i < FAILOVERS; i++) {
+            long begin = System.nanoTime();
+            clients.get(active).close();
+            Integer next = actives.poll(30, TimeUnit.SECONDS);
+            if (next == null) {
+                throw new IllegalStateException("no instance takes over in 30s");
+            }
+            total += System.nanoTime() - begin;
+            active = next;
+        }
+
+        long failedCreates = 0;
+        double takeover = 0;
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).close();
+            failedCreates += autoSwitches.get(i).getFailedCreateCount();
+            takeover = Math.max(takeover, autoSwitches.get(i).getMetrics().get("takeover").getMaxMillis());
+        }
+        System.out.println(mode + "\tstandbys=" + standbys
+                + "\ttakeover(ms)=" + String.format("%.1f", TimeUnit.NANOSECONDS.toMicros(total) / 1000.0 / FAILOVERS)
+                + "\tmaxSeenByStandby(ms)=" + String.format("%.1f", takeover)
+                + "\tfailedCreates=" + failedCreates);
+    }
+}
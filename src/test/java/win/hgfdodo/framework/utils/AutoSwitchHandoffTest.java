@@ -0,0 +1,116 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 两种选举方式下分别检查计划内交接的结果：交给一个已就绪但永远不接替的实例时超时返回false，
+ * 交给正常的备用实例时返回true且接替实例开始工作。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class AutoSwitchHandoffTest {
+
+    private final static String ROOT = "/test/autoswitch";
+    private final static long TIMEOUT = 500;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        try {
+            for (AutoSwitch.ElectionMode mode : AutoSwitch.ElectionMode.values()) {
+                run(zookeeper, mode);
+            }
+        } finally {
+            zookeeper.close();
+        }
+    }
+
+    private static void run(TestZookeeper zookeeper, AutoSwitch.ElectionMode mode) throws Exception {
+        String project = "handoff-" + mode.name().toLowerCase();
+        CuratorFramework ghost = zookeeper.newClient();
+        ghost.start();
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        List<AutoSwitch> autoSwitches = new ArrayList<AutoSwitch>();
+        try {
+            autoSwitches.add(start(zookeeper, clients, project, "node0", mode));
+            autoSwitches.get(0).whenActive().get();
+            //只声明就绪、从不接替的实例，CANDIDATE_QUEUE模式下排在工作实例后一位
+            String ghostCandidate = null;
+            if (mode == AutoSwitch.ElectionMode.CANDIDATE_QUEUE) {
+                ghostCandidate = ghost.create().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                        .forPath(ROOT + "-election/" + project + "/candidate-", "ghost".getBytes());
+            }
+            ghost.create().creatingParentContainersIfNeeded().withMode(CreateMode.EPHEMERAL)
+                    .forPath(ROOT + "-ready/" + project + "/ghost");
+            autoSwitches.add(start(zookeeper, clients, project, "node1", mode));
+            autoSwitches.get(1).setReady(true);
+            Thread.sleep(300);
+
+            long begin = System.currentTimeMillis();
+            boolean handedOff = autoSwitches.get(0).handoff("ghost", TIMEOUT);
+            long elapsed = System.currentTimeMillis() - begin;
+            System.out.println(mode + "\thandoff to ghost=" + handedOff + "\telapsed=" + elapsed + "ms");
+            if (handedOff) {
+                throw new IllegalStateException(mode + ": handoff to an instance that never takes over returns true");
+            }
+            if (elapsed < TIMEOUT) {
+                throw new IllegalStateException(mode + ": handoff returns before timeout");
+            }
+            if (null != ghostCandidate) {
+                ghost.delete().forPath(ghostCandidate);
+            }
+
+            int active = awaitActive(autoSwitches);
+            int standby = 1 - active;
+            autoSwitches.get(standby).setReady(true);
+            handedOff = autoSwitches.get(active).handoff("node" + standby, 5000);
+            System.out.println(mode + "\thandoff node" + active + " to node" + standby + "=" + handedOff);
+            if (!handedOff || awaitActive(autoSwitches) != standby) {
+                throw new IllegalStateException(mode + ": node" + standby + " does not take over");
+            }
+        } finally {
+            for (int i = 0; i < autoSwitches.size(); i++) {
+                autoSwitches.get(i).close();
+                clients.get(i).close();
+            }
+            ghost.close();
+        }
+    }
+
+    private static AutoSwitch start(TestZookeeper zookeeper, List<CuratorFramework> clients, String project,
+                                    String projectNode, AutoSwitch.ElectionMode mode) {
+        CuratorFramework client = zookeeper.newClient();
+        clients.add(client);
+        AutoSwitch autoSwitch = new AutoSwitch(client, ROOT, project, projectNode);
+        autoSwitch.setElectionMode(mode);
+        autoSwitch.start();
+        return autoSwitch;
+    }
+
+    /**
+     * 等待恰好一个实例在工作
+     *
+     * @return 工作实例的下标
+     */
+    private static int awaitActive(List<AutoSwitch> autoSwitches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            int active = -1;
+            int count = 0;
+            for (int i = 0; i < autoSwitches.size(); i++) {
+                if (autoSwitches.get(i).isActive()) {
+                    active = i;
+                    count++;
+                }
+            }
+            if (count == 1) {
+                return active;
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("no single active instance in 10s");
+    }
+}
@@ -0,0 +1,57 @@
+package win.hgfdodo.framework.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * 与原StringBuilder逐位插入的实现对比编码结果，并检查解码。
+ */
+public class Base62Test {
+    private final static Logger log = LoggerFactory.getLogger(Base62Test.class);
+
+    private final static char[] symbols = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z'};
+
+    public static void main(String[] args) {
+        Random random = new Random();
+        int errors = 0;
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i < 1000 ? i : random.nextLong() & Long.MAX_VALUE;
+        }
+        values[values.length - 1] = Long.MAX_VALUE;
+
+        char[] dst = new char[Base62.MAX_LENGTH];
+        for (long value : values) {
+            for (int length : new int[]{0, 6, 11, 16}) {
+                String expected = legacy(value, length);
+                String actual = Base62.toString(value, length);
+                if (!expected.equals(actual)) {
+                    errors++;
+                    log.error("ERROR: value=" + value + ", length=" + length + ", expected=" + expected + ", actual=" + actual);
+                }
+            }
+            Base62.encode(value, Base62.MAX_LENGTH, dst, 0);
+            if (Base62.decode(new String(dst)) != value) {
+                errors++;
+                log.error("ERROR: decode " + new String(dst) + " != " + value);
+            }
+        }
+        System.out.println(errors == 0 ? "ok" : errors + " errors");
+    }
+
+    private static String legacy(long value, int length) {
+        StringBuilder sb = new StringBuilder();
+        while (value > 0) {
+            sb.insert(0, symbols[(int) (value % symbols.length)]);
+            value /= symbols.length;
+        }
+        for (int i = sb.length(); i < length; i++) {
+            sb.insert(0, "0");
+        }
+        return sb.toString();
+    }
+}
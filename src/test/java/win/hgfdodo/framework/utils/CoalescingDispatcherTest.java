@@ -0,0 +1,142 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 连续修改多个子节点，慢的监听者通过CoalescingDispatcher接收变化，检查每个节点最后收到的是最新数据，并输出合并比例和延迟。
+ * 然后阻塞一个回调线程，检查其他回调线程上的节点仍然及时收到变化。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class CoalescingDispatcherTest {
+
+    private final static String ROOT = "/test/dispatcher";
+    private final static int NODES = 20;
+    private final static int WRITES = 50;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        CuratorFramework client = zookeeper.newClient();
+        client.start();
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher("test");
+        dispatcher.setWindowMillis(50);
+        dispatcher.setThreads(2);
+        dispatcher.setQueueCapacity(16);
+        dispatcher.init();
+        PathChildrenCache cache = new PathChildrenCache(client, ROOT, true);
+        try {
+            for (int i = 0; i < NODES; i++) {
+                client.create().creatingParentsIfNeeded().forPath(ROOT + "/node" + i, "0".getBytes());
+            }
+            final Map<String, String> latest = new ConcurrentHashMap<String, String>();
+            dispatcher.listen(cache, new NodeChangeListener() {
+                public void nodeChanged(String path, ChildData data) throws Exception {
+                    //模拟监听者中的阻塞操作
+                    Thread.sleep(5);
+                    latest.put(path, data == null ? "" : new String(data.getData()));
+                }
+            });
+            cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+
+            long begin = System.nanoTime();
+            for (int j = 1; j <= WRITES; j++) {
+                for (int i = 0; i < NODES; i++) {
+                    client.setData().forPath(ROOT + "/node" + i, String.valueOf(j).getBytes());
+                }
+            }
+            boolean done = false;
+            for (int retry = 0; retry < 100 && !done; retry++) {
+                Thread.sleep(100);
+                done = true;
+                for (int i = 0; i < NODES; i++) {
+                    if (!String.valueOf(WRITES).equals(latest.get(ROOT + "/node" + i))) {
+                        done = false;
+                    }
+                }
+            }
+            if (!done) {
+                throw new IllegalStateException("latest data is not dispatched: " + latest);
+            }
+            System.out.println("writes=" + NODES * WRITES + "\telapsed=" + (System.nanoTime() - begin) / 1000000 + "ms"
+                    + "\treceived=" + dispatcher.getReceivedCount() + "\tdispatched=" + dispatcher.getDispatchedCount()
+                    + String.format("\tmergeRatio=%.2f", dispatcher.getMergeRatio())
+                    + "\tqueueDepth=" + dispatcher.getQueueDepth() + "\tdelay " + dispatcher.getDelayHistogram());
+
+            isolation(client, cache);
+        } finally {
+            cache.close();
+            dispatcher.close();
+            client.close();
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * 两个回调线程、队列长度为1，回调线程0上的监听者一直阻塞，回调线程1上的节点仍应收到最新数据
+     */
+    private static void isolation(CuratorFramework client, PathChildrenCache cache) throws Exception {
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher("isolation");
+        dispatcher.setWindowMillis(10);
+        dispatcher.setThreads(2);
+        dispatcher.setQueueCapacity(1);
+        dispatcher.init();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final Map<String, String> latest = new ConcurrentHashMap<String, String>();
+        dispatcher.listen(cache, new NodeChangeListener() {
+            public void nodeChanged(String path, ChildData data) throws Exception {
+                if (stripe(path) == 0) {
+                    gate.await();
+                }
+                latest.put(path, data == null ? "" : new String(data.getData()));
+            }
+        });
+        try {
+            for (int j = 1; j <= 5; j++) {
+                for (int i = 0; i < NODES; i++) {
+                    client.setData().forPath(ROOT + "/node" + i, ("isolation" + j).getBytes());
+                }
+            }
+            if (!await(latest, 1)) {
+                throw new IllegalStateException("changes on stripe 1 are blocked by stripe 0: " + latest);
+            }
+            gate.countDown();
+            if (!await(latest, 0)) {
+                throw new IllegalStateException("changes on stripe 0 are not dispatched: " + latest);
+            }
+            System.out.println("isolation\tdispatched=" + dispatcher.getDispatchedCount() + "\tdeferred=" + dispatcher.getDeferredCount());
+        } finally {
+            gate.countDown();
+            dispatcher.close();
+        }
+    }
+
+    private static boolean await(Map<String, String> latest, int stripe) throws InterruptedException {
+        for (int retry = 0; retry < 50; retry++) {
+            boolean done = true;
+            for (int i = 0; i < NODES; i++) {
+                String path = ROOT + "/node" + i;
+                if (stripe(path) == stripe && !"isolation5".equals(latest.get(path))) {
+                    done = false;
+                }
+            }
+            if (done) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    /**
+     * 与CoalescingDispatcher按路径选择回调线程的方式相同
+     */
+    private static int stripe(String path) {
+        return (path.hashCode() & Integer.MAX_VALUE) % 2;
+    }
+}
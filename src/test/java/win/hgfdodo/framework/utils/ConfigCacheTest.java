@@ -0,0 +1,102 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加载数千个配置后修改其中一部分，检查监听者收到的快照与写入的数据和版本一致，并输出多线程读取配置的速度。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class ConfigCacheTest {
+
+    private final static String ROOT = "/test/config";
+    private final static int KEYS = 2000;
+    private final static int UPDATES = 200;
+    private final static int THREADS = 4;
+    private final static int READS_PER_THREAD = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        CuratorFramework client = zookeeper.newClient();
+        client.start();
+        ConfigCache cache = new ConfigCache(client, ROOT);
+        try {
+            final String[] paths = new String[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                paths[i] = ROOT + "/group" + (i % 10) + "/key" + i;
+                client.create().creatingParentsIfNeeded().forPath(paths[i], ("value" + i).getBytes());
+            }
+
+            final CountDownLatch changed = new CountDownLatch(UPDATES);
+            cache.getListenable().addListener(new ConfigCacheListener() {
+                public void changed(ConfigCache cache, ConfigCache.Entry previous, ConfigCache.Entry current) {
+                    if (previous != null && current.getVersion() == previous.getVersion() + 1
+                            && new String(current.getData()).startsWith("updated")) {
+                        changed.countDown();
+                    }
+                }
+
+                public void removed(ConfigCache cache, ConfigCache.Entry previous) {
+                }
+            });
+            long begin = System.nanoTime();
+            cache.init();
+            System.out.println("load " + cache.getEntries().size() + " entries in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms");
+            for (int i = 0; i < KEYS; i++) {
+                if (!("value" + i).equals(cache.getString(paths[i], null))) {
+                    throw new IllegalStateException("config " + paths[i] + " is not loaded");
+                }
+            }
+
+            for (int i = 0; i < UPDATES; i++) {
+                client.setData().forPath(paths[i], ("updated" + i).getBytes());
+            }
+            if (!changed.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(changed.getCount() + " changes are not notified");
+            }
+            for (int i = 0; i < UPDATES; i++) {
+                ConfigCache.Entry entry = cache.get(paths[i]);
+                if (entry.getVersion() != 1 || !("updated" + i).equals(new String(entry.getData()))) {
+                    throw new IllegalStateException("config " + entry + " is not updated");
+                }
+            }
+
+            ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            final ConfigCache reader = cache;
+            begin = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executorService.submit(new Callable<Long>() {
+                    public Long call() {
+                        long length = 0;
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            length += reader.get(paths[i % KEYS]).getData().length;
+                        }
+                        return length;
+                    }
+                }));
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - begin;
+            executorService.shutdown();
+            System.out.println("reads/s=" + (long) ((double) THREADS * READS_PER_THREAD * 1e9 / elapsed)
+                    + "\tgeneration=" + cache.getGeneration());
+        } finally {
+            cache.close();
+            client.close();
+            zookeeper.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 三个节点（三个连接）各自多线程不停请求同一个限流，检查通过的请求数不超过限额加上误差上限，并输出每次tryAcquire的耗时。
+ * 然后单个节点以低于限额的速率请求，检查窗口切换时没有请求被拒绝。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class DistributedRateLimiterTest {
+
+    private final static long PERMITS_PER_SECOND = 20000;
+    private final static int NODES = 3;
+    private final static int THREADS = 2;
+    private final static long SECONDS = 5;
+    private final static double MAX_SHARE = 0.05;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        List<DistributedRateLimiter> limiters = new ArrayList<DistributedRateLimiter>();
+        for (int i = 0; i < NODES; i++) {
+            CuratorFramework client = zookeeper.newClient();
+            DistributedRateLimiter limiter = new DistributedRateLimiter(client, "/test/ratelimiter", "api", PERMITS_PER_SECOND);
+            limiter.setMaxShare(MAX_SHARE);
+            limiter.init();
+            clients.add(client);
+            limiters.add(limiter);
+        }
+
+        //从下一个整秒开始，统计完整的SECONDS个窗口
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+        final long end = System.currentTimeMillis() + SECONDS * 1000;
+        ExecutorService executorService = Executors.newFixedThreadPool(NODES * THREADS);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        for (final DistributedRateLimiter limiter : limiters) {
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executorService.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception {
+                        long granted = 0;
+                        long calls = 0;
+                        long begin = System.nanoTime();
+                        while (System.currentTimeMillis() < end) {
+                            if (limiter.tryAcquire()) {
+                                granted++;
+                            }
+                            calls++;
+                        }
+                        return new long[]{granted, calls, System.nanoTime() - begin};
+                    }
+                }));
+            }
+        }
+
+        long granted = 0;
+        long calls = 0;
+        long nanos = 0;
+        for (Future<long[]> future : futures) {
+            long[] result = future.get();
+            granted += result[0];
+            calls += result[1];
+            nanos += result[2];
+        }
+        executorService.shutdown();
+
+        long limit = PERMITS_PER_SECOND * SECONDS;
+        long margin = (long) (limit * MAX_SHARE * NODES);
+        long claims = 0;
+        for (int i = 0; i < NODES; i++) {
+            claims += limiters.get(i).getClaimCount();
+            limiters.get(i).close();
+            clients.get(i).close();
+        }
+        System.out.println("granted=" + granted + "\tlimit=" + limit + "\tmargin=" + margin
+                + "\tclaims=" + claims + "\tns/call=" + String.format("%.1f", (double) nanos / calls));
+        if (granted > limit + margin) {
+            throw new IllegalStateException("granted " + granted + " exceeds limit " + limit + " + " + margin);
+        }
+        try {
+            underLimit(zookeeper);
+        } finally {
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * 以限额的四分之一请求，第一个窗口之后不应有请求被拒绝
+     */
+    private static void underLimit(TestZookeeper zookeeper) throws Exception {
+        CuratorFramework client = zookeeper.newClient();
+        DistributedRateLimiter limiter = new DistributedRateLimiter(client, "/test/ratelimiter", "light", PERMITS_PER_SECOND);
+        limiter.setMaxShare(MAX_SHARE);
+        limiter.init();
+        try {
+            long intervalNanos = 4 * 1000000000L / PERMITS_PER_SECOND;
+            long warmup = System.currentTimeMillis() + 1000;
+            long end = warmup + SECONDS * 1000;
+            long denied = 0;
+            long next = System.nanoTime();
+            while (System.currentTimeMillis() < end) {
+                if (!limiter.tryAcquire() && System.currentTimeMillis() >= warmup) {
+                    denied++;
+                }
+                next += intervalNanos;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            System.out.println("under limit\tdenied=" + denied + "\tclaims=" + limiter.getClaimCount());
+            if (denied > 0) {
+                throw new IllegalStateException(denied + " requests under limit are denied");
+            }
+        } finally {
+            limiter.close();
+            client.close();
+        }
+    }
+}
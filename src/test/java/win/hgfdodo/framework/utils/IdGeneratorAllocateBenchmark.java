@@ -0,0 +1,86 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 比较LOCK和COMPARE_AND_SET两种区间申请方式，在不同并发客户端数下每秒能申请的区间数。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class IdGeneratorAllocateBenchmark {
+    private final static Logger log = LoggerFactory.getLogger(IdGeneratorAllocateBenchmark.class);
+
+    private final static int[] CLIENTS = {1, 2, 4, 8, 16, 32, 48};
+    private final static long DURATION_MS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+
+        try {
+            for (IdGenerator.AllocateMode mode : IdGenerator.AllocateMode.values()) {
+                for (int clients : CLIENTS) {
+                    double rate = run(zookeeper, "/benchmark/" + mode.name().toLowerCase() + "-" + clients, mode, clients);
+                    System.out.println(mode + "\tclients=" + clients + "\tsegments/s=" + String.format("%.1f", rate));
+                }
+            }
+        } finally {
+            zookeeper.close();
+        }
+    }
+
+    private static double run(TestZookeeper zookeeper, String root, IdGenerator.AllocateMode mode, int clients) throws Exception {
+        List<CuratorFramework> connections = new ArrayList<CuratorFramework>();
+        final List<IdGenerator> generators = new ArrayList<IdGenerator>();
+        for (int i = 0; i < clients; i++) {
+            CuratorFramework client = zookeeper.newClient();
+            IdGenerator idGenerator = new IdGenerator(client, root, 100);
+            idGenerator.setAllocateMode(mode);
+            idGenerator.init();
+            connections.add(client);
+            generators.add(idGenerator);
+        }
+
+        final AtomicLong segments = new AtomicLong();
+        final CountDownLatch ready = new CountDownLatch(clients);
+        final CountDownLatch begin = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        ExecutorService executorService = Executors.newFixedThreadPool(clients);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final IdGenerator idGenerator : generators) {
+            futures.add(executorService.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    ready.countDown();
+                    begin.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        idGenerator.requestAndGenerateFromZookeeper();
+                        segments.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        ready.await();
+        long begun = System.currentTimeMillis();
+        deadline[0] = begun + DURATION_MS;
+        begin.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.currentTimeMillis() - begun;
+        executorService.shutdown();
+
+        for (CuratorFramework client : connections) {
+            client.close();
+        }
+        log.debug("{} clients={} segments={} elapsed={}ms", mode, clients, segments.get(), elapsed);
+        return segments.get() * 1000.0 / elapsed;
+    }
+}
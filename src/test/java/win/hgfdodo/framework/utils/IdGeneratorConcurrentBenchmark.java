@@ -0,0 +1,88 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * 多个线程共用一个IdGenerator，统计1到64个线程时每秒生成的ID数，并检查是否有重复ID。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class IdGeneratorConcurrentBenchmark {
+    private final static Logger log = LoggerFactory.getLogger(IdGeneratorConcurrentBenchmark.class);
+
+    private final static int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private final static int IDS_PER_RUN = 1 << 21;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+
+        CuratorFramework client = zookeeper.newClient();
+        IdGenerator idGenerator = new IdGenerator(client, "/benchmark/concurrent", 10000);
+        idGenerator.setAllocateMode(IdGenerator.AllocateMode.COMPARE_AND_SET);
+        idGenerator.setBuffered(true);
+        idGenerator.init();
+
+        try {
+            //预热
+            run(idGenerator, 4);
+            for (int thread : THREADS) {
+                run(idGenerator, thread);
+            }
+        } finally {
+            client.close();
+            zookeeper.close();
+        }
+    }
+
+    private static void run(final IdGenerator idGenerator, int thread) throws Exception {
+        final int perThread = IDS_PER_RUN / thread;
+        final CountDownLatch begin = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(thread);
+        List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+        for (int i = 0; i < thread; i++) {
+            futures.add(executorService.submit(new Callable<String[]>() {
+                public String[] call() throws Exception {
+                    String[] ids = new String[perThread];
+                    begin.await();
+                    for (int j = 0; j < perThread; j++) {
+                        ids[j] = idGenerator.generateId();
+                    }
+                    return ids;
+                }
+            }));
+        }
+
+        long waitCount = idGenerator.getWaitCount();
+        long begun = System.nanoTime();
+        begin.countDown();
+        List<String[]> results = new ArrayList<String[]>();
+        for (Future<String[]> future : futures) {
+            results.add(future.get());
+        }
+        long elapsed = System.nanoTime() - begun;
+        executorService.shutdown();
+
+        Set<String> set = new HashSet<String>(IDS_PER_RUN * 2);
+        int duplicated = 0;
+        for (String[] ids : results) {
+            for (String id : ids) {
+                if (!set.add(id)) {
+                    duplicated++;
+                    log.error("Duplicated:" + id);
+                }
+            }
+        }
+        System.out.println("threads=" + thread
+                + "\tids/s=" + String.format("%.0f", (double) perThread * thread * TimeUnit.SECONDS.toNanos(1) / elapsed)
+                + "\twaits=" + (idGenerator.getWaitCount() - waitCount)
+                + "\tduplicated=" + duplicated);
+    }
+}
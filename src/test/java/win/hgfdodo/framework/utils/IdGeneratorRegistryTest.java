@@ -0,0 +1,70 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 两个进程内的registry共用各自的一个连接，多线程生成多个序列的ID，其中orders序列使用4个计数节点，检查每个序列内ID不重复。
+ */
+public class IdGeneratorRegistryTest {
+    private final static Logger log = LoggerFactory.getLogger(IdGeneratorRegistryTest.class);
+
+    private final static String[] SEQUENCES = {"orders", "invoices", "sessions"};
+
+    public static void main(String[] args) throws Exception {
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        final List<IdGeneratorRegistry> registries = new ArrayList<IdGeneratorRegistry>();
+        for (int i = 0; i < 2; i++) {
+            CuratorFramework client = CuratorFrameworkFactory.builder()
+                    .connectString("localhost:2181")
+                    .sessionTimeoutMs(6000)
+                    .connectionTimeoutMs(6000)
+                    .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                    .build();
+            IdGeneratorRegistry registry = new IdGeneratorRegistry(client, "/test/registry", 100);
+            registry.init();
+            registry.register("orders", 100, 4);
+            clients.add(client);
+            registries.add(registry);
+        }
+
+        int thread = 8;
+        ExecutorService executorService = Executors.newFixedThreadPool(thread);
+        List<Future<List<String>>> f = new ArrayList<Future<List<String>>>();
+        for (int i = 0; i < thread; i++) {
+            final IdGeneratorRegistry registry = registries.get(i % registries.size());
+            f.add(executorService.submit(new Callable<List<String>>() {
+                public List<String> call() throws Exception {
+                    List<String> list = new ArrayList<String>();
+                    for (int j = 0; j < 20000; j++) {
+                        String sequence = SEQUENCES[j % SEQUENCES.length];
+                        list.add(sequence + "," + registry.generateId(sequence));
+                    }
+                    return list;
+                }
+            }));
+        }
+
+        Set<String> set = new HashSet<String>();
+        for (Future<List<String>> future : f) {
+            for (String id : future.get()) {
+                if (!set.add(id)) {
+                    log.error("ERROR: " + id);
+                }
+            }
+        }
+        System.out.println("ids=" + set.size());
+        executorService.shutdown();
+
+        for (int i = 0; i < registries.size(); i++) {
+            registries.get(i).close();
+            clients.get(i).close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.test.KillSession;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 加载数千个子节点后，先重启zookeeper（会话不过期），再使缓存的会话过期并同时修改、删除、新增部分子节点，
+ * 检查同步后缓存与zookeeper一致，并输出每次同步读取的数据次数。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer，使用外部服务器时跳过重启。
+ */
+public class IncrementalChildrenCacheTest {
+
+    private final static String ROOT = "/test/incremental";
+    private final static int CHILDREN = 2000;
+    private final static int CHANGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        CuratorFramework writer = connect(zookeeper);
+        CuratorFramework client = connect(zookeeper);
+        try {
+            if (writer.checkExists().forPath(ROOT) != null) {
+                writer.delete().deletingChildrenIfNeeded().forPath(ROOT);
+            }
+            writer.create().creatingParentsIfNeeded().forPath(ROOT);
+            for (int i = 0; i < CHILDREN; i++) {
+                writer.create().inBackground().forPath(ROOT + "/child" + i, "0".getBytes());
+            }
+            while (writer.getChildren().forPath(ROOT).size() < CHILDREN) {
+                Thread.sleep(100);
+            }
+
+            final ConcurrentHashMap<PathChildrenCacheEvent.Type, AtomicLong> events = new ConcurrentHashMap<PathChildrenCacheEvent.Type, AtomicLong>();
+            for (PathChildrenCacheEvent.Type type : PathChildrenCacheEvent.Type.values()) {
+                events.put(type, new AtomicLong());
+            }
+            IncrementalChildrenCache cache = new IncrementalChildrenCache(client, ROOT);
+            cache.getListenable().addListener(new PathChildrenCacheListener() {
+                public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+                    events.get(event.getType()).incrementAndGet();
+                }
+            });
+            cache.init();
+            verify(writer, cache);
+            report("init", cache, cache.getDataReadCount());
+
+            if (zookeeper.isEmbedded()) {
+                long reads = cache.getDataReadCount();
+                long resyncs = cache.getResyncCount();
+                zookeeper.restart();
+                awaitResync(cache, resyncs);
+                verify(writer, cache);
+                report("restart", cache, cache.getDataReadCount() - reads);
+            }
+
+            long reads = cache.getDataReadCount();
+            long resyncs = cache.getResyncCount();
+            long updated = events.get(PathChildrenCacheEvent.Type.CHILD_UPDATED).get();
+            long removed = events.get(PathChildrenCacheEvent.Type.CHILD_REMOVED).get();
+            long added = events.get(PathChildrenCacheEvent.Type.CHILD_ADDED).get();
+            KillSession.kill(client.getZookeeperClient().getZooKeeper(), zookeeper.getConnectString());
+            for (int i = 0; i < CHANGES; i++) {
+                writer.setData().forPath(ROOT + "/child" + i, "1".getBytes());
+                writer.delete().forPath(ROOT + "/child" + (CHILDREN - 1 - i));
+                writer.create().forPath(ROOT + "/new" + i, "0".getBytes());
+            }
+            awaitResync(cache, resyncs);
+            verify(writer, cache);
+            report("expired", cache, cache.getDataReadCount() - reads);
+            check("CHILD_UPDATED", CHANGES, events.get(PathChildrenCacheEvent.Type.CHILD_UPDATED).get() - updated);
+            check("CHILD_REMOVED", CHANGES, events.get(PathChildrenCacheEvent.Type.CHILD_REMOVED).get() - removed);
+            check("CHILD_ADDED", CHANGES, events.get(PathChildrenCacheEvent.Type.CHILD_ADDED).get() - added);
+            if (cache.getDataReadCount() - reads > CHILDREN / 10) {
+                throw new IllegalStateException("resync read " + (cache.getDataReadCount() - reads) + " children");
+            }
+            cache.close();
+        } finally {
+            client.close();
+            writer.close();
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * 等待重连后的同步完成，完成时缓存与zookeeper一致
+     */
+    private static void awaitResync(IncrementalChildrenCache cache, long resyncs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (cache.getResyncCount() == resyncs) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("cache is not resynced");
+            }
+            Thread.sleep(50);
+        }
+        //等待watch触发的读取完成
+        Thread.sleep(1000);
+    }
+
+    private static void verify(CuratorFramework writer, IncrementalChildrenCache cache) throws Exception {
+        List<String> names = writer.getChildren().forPath(ROOT);
+        if (names.size() != cache.getCurrentData().size()) {
+            throw new IllegalStateException("cache has " + cache.getCurrentData().size() + " children, zookeeper has " + names.size());
+        }
+        for (String name : names) {
+            String path = ROOT + "/" + name;
+            Stat stat = new Stat();
+            byte[] data = writer.getData().storingStatIn(stat).forPath(path);
+            ChildData childData = cache.getCurrentData(path);
+            if (childData == null || !Arrays.equals(data, childData.getData()) || !stat.equals(childData.getStat())) {
+                throw new IllegalStateException(path + " is not the same as zookeeper");
+            }
+        }
+    }
+
+    private static void check(String type, long expected, long actual) {
+        if (expected != actual) {
+            throw new IllegalStateException(type + " expected " + expected + " but " + actual);
+        }
+    }
+
+    private static void report(String phase, IncrementalChildrenCache cache, long dataReads) {
+        System.out.println(phase + "\tchildren=" + cache.getCurrentData().size()
+                + "\tdataReads=" + dataReads
+                + "\tstatReads=" + cache.getStatReadCount()
+                + "\tresyncs=" + cache.getResyncCount()
+                + "\tlastResync=" + cache.getLastResyncMillis() + "ms");
+    }
+
+    private static CuratorFramework connect(TestZookeeper zookeeper) {
+        CuratorFramework client = zookeeper.newClient(10000);
+        client.start();
+        return client;
+    }
+}
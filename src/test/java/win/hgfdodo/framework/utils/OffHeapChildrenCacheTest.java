@@ -0,0 +1,184 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加载数千个KB级的子节点，比较PathChildrenCache和OffHeapChildrenCache增加的堆内存，
+ * 然后修改、删除部分子节点，检查堆外数据与zookeeper一致。然后使用内存映射文件重复检查，
+ * 最后检查数据为null和超过chunkSize的子节点。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class OffHeapChildrenCacheTest {
+
+    private final static String ROOT = "/test/offheap";
+    private final static int CHILDREN = 5000;
+    private final static int PAYLOAD = 2048;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        CuratorFramework client = zookeeper.newClient();
+        client.start();
+        try {
+            client.create().creatingParentsIfNeeded().forPath(ROOT);
+            for (int i = 0; i < CHILDREN; i++) {
+                client.create().inBackground().forPath(ROOT + "/child" + i, payload(i, 0));
+            }
+            while (client.getChildren().forPath(ROOT).size() < CHILDREN) {
+                Thread.sleep(100);
+            }
+
+            long before = TestZookeeper.usedMemory();
+            PathChildrenCache onHeap = new PathChildrenCache(client, ROOT, true);
+            onHeap.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+            System.out.println("PathChildrenCache\theap=" + (TestZookeeper.usedMemory() - before) / 1024 + "KB");
+            onHeap.close();
+            onHeap = null;
+
+            before = TestZookeeper.usedMemory();
+            OffHeapChildrenCache offHeap = new OffHeapChildrenCache(client, ROOT);
+            offHeap.init();
+            System.out.println("OffHeapChildrenCache\theap=" + (TestZookeeper.usedMemory() - before) / 1024 + "KB"
+                    + "\testimatedHeap=" + offHeap.getEstimatedHeapBytes() / 1024 + "KB"
+                    + "\tpayload=" + offHeap.getPayloadBytes() / 1024 + "KB"
+                    + "\tusedOffHeap=" + offHeap.getUsedOffHeapBytes() / 1024 + "KB"
+                    + "\treservedOffHeap=" + offHeap.getReservedOffHeapBytes() / 1024 + "KB");
+            check(client, offHeap);
+            offHeap.close();
+
+            File file = File.createTempFile("offheap", ".cache");
+            file.deleteOnExit();
+            OffHeapChildrenCache mapped = new OffHeapChildrenCache(client, ROOT);
+            mapped.setMappedFile(file);
+            mapped.init();
+            check(client, mapped);
+            System.out.println("mapped file\tsize=" + file.length() / 1024 + "KB");
+            mapped.close();
+
+            checkHeapData(client);
+        } finally {
+            client.close();
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * 检查加载的数据，修改和删除部分子节点后再次检查
+     */
+    private static void check(CuratorFramework client, OffHeapChildrenCache cache) throws Exception {
+        for (int i = 0; i < CHILDREN; i++) {
+            verify(client, cache, ROOT + "/child" + i);
+        }
+        for (ChildData childData : cache.getCurrentData()) {
+            if (childData.getData() != null) {
+                throw new IllegalStateException("data of " + childData.getPath() + " is still on heap");
+            }
+        }
+        final CountDownLatch changed = new CountDownLatch(200);
+        PathChildrenCacheListener listener = new PathChildrenCacheListener() {
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+                if (event.getType() == PathChildrenCacheEvent.Type.CHILD_UPDATED
+                        || event.getType() == PathChildrenCacheEvent.Type.CHILD_REMOVED) {
+                    changed.countDown();
+                }
+            }
+        };
+        cache.getListenable().addListener(listener);
+        for (int i = 0; i < 100; i++) {
+            String path = ROOT + "/child" + i;
+            int version = client.checkExists().forPath(path).getVersion();
+            //改变数据长度，使数据移到其他级别的槽位
+            client.setData().forPath(path, Arrays.copyOf(payload(i, version + 1), PAYLOAD / (version % 2 + 1)));
+        }
+        for (int i = CHILDREN - 100; i < CHILDREN; i++) {
+            client.delete().forPath(ROOT + "/child" + i);
+        }
+        if (!changed.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(changed.getCount() + " changes are not received");
+        }
+        cache.getListenable().removeListener(listener);
+        for (int i = 0; i < CHILDREN - 100; i++) {
+            verify(client, cache, ROOT + "/child" + i);
+        }
+        for (int i = CHILDREN - 100; i < CHILDREN; i++) {
+            if (cache.getData(ROOT + "/child" + i) != null) {
+                throw new IllegalStateException("child" + i + " is removed but still cached");
+            }
+            client.create().forPath(ROOT + "/child" + i, payload(i, 0));
+        }
+    }
+
+    /**
+     * 数据为null的子节点读到空数据，超过chunkSize的子节点留在堆内，监听者都能收到事件
+     */
+    private static void checkHeapData(CuratorFramework client) throws Exception {
+        OffHeapChildrenCache cache = new OffHeapChildrenCache(client, ROOT);
+        cache.setChunkSize(PAYLOAD);
+        cache.init();
+        final CountDownLatch events = new CountDownLatch(4);
+        cache.getListenable().addListener(new PathChildrenCacheListener() {
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+                if (event.getType() == PathChildrenCacheEvent.Type.CHILD_ADDED
+                        || event.getType() == PathChildrenCacheEvent.Type.CHILD_UPDATED) {
+                    events.countDown();
+                }
+            }
+        });
+        String empty = ROOT + "/empty";
+        String large = ROOT + "/large";
+        byte[] data = new byte[PAYLOAD * 4];
+        Arrays.fill(data, (byte) 1);
+        client.create().forPath(empty, null);
+        client.create().forPath(large, data);
+        client.setData().forPath(ROOT + "/child0", null);
+        client.setData().forPath(ROOT + "/child1", data);
+        if (!events.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(events.getCount() + " events are not received");
+        }
+        for (String path : new String[]{empty, ROOT + "/child0"}) {
+            if (cache.getData(path) == null || cache.getData(path).remaining() != 0 || cache.copyData(path).length != 0) {
+                throw new IllegalStateException("data of " + path + " is not empty");
+            }
+        }
+        for (String path : new String[]{large, ROOT + "/child1"}) {
+            if (!Arrays.equals(data, cache.copyData(path))) {
+                throw new IllegalStateException("large data of " + path + " is not cached");
+            }
+        }
+        System.out.println("heap data\testimatedHeap=" + cache.getEstimatedHeapBytes() / 1024 + "KB");
+        cache.close();
+        client.delete().forPath(empty);
+        client.delete().forPath(large);
+    }
+
+    private static void verify(CuratorFramework client, OffHeapChildrenCache cache, String path) throws Exception {
+        byte[] expected = client.getData().forPath(path);
+        ByteBuffer view = cache.getData(path);
+        byte[] actual = new byte[view.remaining()];
+        view.get(actual);
+        if (!Arrays.equals(expected, actual) || !Arrays.equals(expected, cache.copyData(path))) {
+            throw new IllegalStateException("data of " + path + " is not the same as zookeeper");
+        }
+        if (cache.getStat(path) == null) {
+            throw new IllegalStateException("stat of " + path + " is not cached");
+        }
+    }
+
+    private static byte[] payload(int child, int version) {
+        byte[] data = new byte[PAYLOAD];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (child * 31 + version * 7 + i);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,161 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 两个进程（两个连接）各自多线程使用同一个资源池，检查同时使用的资源数不超过资源总数，
+ * 并比较不批量和批量两种方式的吞吐量以及访问zookeeper的次数；
+ * 然后开启优先级排队，低优先级线程占满资源后加入少量高优先级线程，比较两种优先级的等待时长。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class ResourcePoolTest {
+
+    private final static int RESOURCES = 8;
+    private final static int THREADS = 8;
+    private final static int PER_THREAD = 200;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+        try {
+            run(zookeeper, 1);
+            run(zookeeper, 4);
+            runPriority(zookeeper);
+        } finally {
+            zookeeper.close();
+        }
+    }
+
+    private static void run(TestZookeeper zookeeper, int batchSize) throws Exception {
+        final AtomicInteger inUse = new AtomicInteger();
+        final AtomicInteger maxInUse = new AtomicInteger();
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        List<ResourcePool> pools = new ArrayList<ResourcePool>();
+        for (int i = 0; i < 2; i++) {
+            CuratorFramework client = zookeeper.newClient();
+            ResourcePool pool = new ResourcePool("test-batch" + batchSize, "node" + i, client, RESOURCES);
+            pool.setBatchSize(batchSize);
+            pool.init();
+            clients.add(client);
+            pools.add(pool);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS * pools.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        long begin = System.nanoTime();
+        for (final ResourcePool pool : pools) {
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executorService.submit(new Runnable() {
+                    public void run() {
+                        for (int j = 0; j < PER_THREAD; j++) {
+                            ResourcePool.Lease lease = pool.acquire();
+                            try {
+                                int current = inUse.incrementAndGet();
+                                int max;
+                                while (current > (max = maxInUse.get()) && !maxInUse.compareAndSet(max, current)) {
+                                    //其他线程更新了最大值，重新比较
+                                }
+                                //模拟使用资源
+                                LockSupport.parkNanos(200000);
+                                inUse.decrementAndGet();
+                            } finally {
+                                lease.close();
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        executorService.shutdown();
+
+        long remote = 0;
+        for (int i = 0; i < pools.size(); i++) {
+            remote += pools.get(i).getRemoteAcquireCount();
+            pools.get(i).close();
+            clients.get(i).close();
+        }
+        long ops = (long) THREADS * PER_THREAD * pools.size();
+        if (maxInUse.get() > RESOURCES) {
+            throw new IllegalStateException(maxInUse.get() + " resources are used at the same time, more than " + RESOURCES);
+        }
+        System.out.println("batchSize=" + batchSize + "\tacquires/s=" + (long) (ops * 1e9 / elapsed)
+                + "\tremoteAcquires=" + remote + "\tmaxInUse=" + maxInUse.get());
+    }
+
+    private static void runPriority(TestZookeeper zookeeper) throws Exception {
+        final int resources = 2;
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        List<ResourcePool> pools = new ArrayList<ResourcePool>();
+        for (int i = 0; i < 2; i++) {
+            CuratorFramework client = zookeeper.newClient();
+            ResourcePool pool = new ResourcePool("test-priority", "node" + i, client, resources);
+            pool.setPrioritized(true);
+            pool.init();
+            clients.add(client);
+            pools.add(pool);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS * pools.size() + 2);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        //第一个进程的低优先级线程持续占用资源
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executorService.submit(new Use(pools.get(0), 10, 20, 2000000)));
+        }
+        Thread.sleep(200);
+        //第二个进程的高优先级线程在资源紧张时申请
+        for (int i = 0; i < 2; i++) {
+            futures.add(executorService.submit(new Use(pools.get(1), 90, 20, 2000000)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        for (int i = 0; i < pools.size(); i++) {
+            System.out.println("node" + i + "\twait=" + pools.get(i).getWaitHistograms()
+                    + "\ttimeouts=" + pools.get(i).getTimeoutCount());
+            pools.get(i).close();
+            clients.get(i).close();
+        }
+    }
+
+    /**
+     * 按优先级重复申请、使用、释放资源
+     */
+    private static class Use implements Runnable {
+        private final ResourcePool pool;
+        private final int priority;
+        private final int times;
+        private final long holdNanos;
+
+        Use(ResourcePool pool, int priority, int times, long holdNanos) {
+            this.pool = pool;
+            this.priority = priority;
+            this.times = times;
+            this.holdNanos = holdNanos;
+        }
+
+        public void run() {
+            for (int i = 0; i < times; i++) {
+                ResourcePool.Lease lease = pool.acquire(priority);
+                try {
+                    LockSupport.parkNanos(holdNanos);
+                } finally {
+                    lease.close();
+                }
+            }
+        }
+    }
+}
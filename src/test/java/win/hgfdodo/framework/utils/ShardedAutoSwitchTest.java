@@ -0,0 +1,93 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 依次加入和退出ShardedAutoSwitch成员，检查每个分片只被一个成员持有，并输出每次变化移动的分片数。
+ * <p>
+ * 参数为zookeeper连接串，不传时启动内嵌的TestingServer。
+ */
+public class ShardedAutoSwitchTest {
+
+    private final static int SHARDS = 64;
+    private final static int MEMBERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        TestZookeeper zookeeper = TestZookeeper.start(args);
+
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        List<ShardedAutoSwitch> members = new ArrayList<ShardedAutoSwitch>();
+        Map<Integer, String> before = new HashMap<Integer, String>();
+        try {
+            for (int i = 0; i < MEMBERS; i++) {
+                CuratorFramework client = zookeeper.newClient();
+                ShardedAutoSwitch member = new ShardedAutoSwitch(client, "/test/autoswitch", "sharded", "member" + i, SHARDS);
+                member.init();
+                clients.add(client);
+                members.add(member);
+                before = check("join member" + i, members, before);
+            }
+
+            for (int i = 0; i < MEMBERS - 1; i++) {
+                members.get(0).close();
+                clients.get(0).close();
+                members.remove(0);
+                clients.remove(0);
+                before = check("leave member" + i, members, before);
+            }
+        } finally {
+            for (int i = 0; i < members.size(); i++) {
+                members.get(i).close();
+                clients.get(i).close();
+            }
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * 等待分配稳定，检查所有分片恰好被持有一次，输出移动的分片数
+     */
+    private static Map<Integer, String> check(String step, List<ShardedAutoSwitch> members, Map<Integer, String> before) throws InterruptedException {
+        Map<Integer, String> owners = new HashMap<Integer, String>();
+        for (int retry = 0; retry < 100; retry++) {
+            Thread.sleep(100);
+            owners.clear();
+            boolean duplicated = false;
+            for (ShardedAutoSwitch member : members) {
+                Set<Integer> shards = member.getAssignedShards();
+                for (Integer shard : shards) {
+                    duplicated |= owners.put(shard, member.getMember()) != null;
+                }
+            }
+            if (duplicated) {
+                throw new IllegalStateException(step + ": shard is owned by more than one member");
+            }
+            if (owners.size() == SHARDS) {
+                break;
+            }
+        }
+        if (owners.size() != SHARDS) {
+            throw new IllegalStateException(step + ": only " + owners.size() + " shards are owned");
+        }
+
+        int moved = 0;
+        for (Map.Entry<Integer, String> entry : owners.entrySet()) {
+            String previous = before.get(entry.getKey());
+            if (previous != null && !previous.equals(entry.getValue())) {
+                moved++;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ShardedAutoSwitch member : members) {
+            sb.append(member.getMember()).append('=').append(member.getAssignedShards().size()).append(' ');
+        }
+        System.out.println(step + "\tmoved=" + moved + "\t" + sb);
+        return owners;
+    }
+}
@@ -0,0 +1,74 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * 两个SnowflakeIdGenerator实例各自多线程生成ID，检查workerId不同且ID不重复，并输出生成速度。
+ */
+public class SnowflakeIdGeneratorTest {
+    private final static Logger log = LoggerFactory.getLogger(SnowflakeIdGeneratorTest.class);
+
+    public static void main(String[] args) throws Exception {
+        int thread = 4;
+        final int perThread = 500000;
+        List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+        List<SnowflakeIdGenerator> generators = new ArrayList<SnowflakeIdGenerator>();
+        for (int i = 0; i < 2; i++) {
+            CuratorFramework client = CuratorFrameworkFactory.builder()
+                    .connectString("localhost:2181")
+                    .sessionTimeoutMs(6000)
+                    .connectionTimeoutMs(6000)
+                    .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                    .build();
+            SnowflakeIdGenerator generator = new SnowflakeIdGenerator(client, "/test/snowflake");
+            generator.init();
+            log.info("worker id " + generator.getWorkerId());
+            clients.add(client);
+            generators.add(generator);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(thread * generators.size());
+        List<Future<String[]>> f = new ArrayList<Future<String[]>>();
+        long begin = System.nanoTime();
+        for (final SnowflakeIdGenerator generator : generators) {
+            for (int i = 0; i < thread; i++) {
+                f.add(executorService.submit(new Callable<String[]>() {
+                    public String[] call() throws Exception {
+                        String[] ids = new String[perThread];
+                        for (int j = 0; j < perThread; j++) {
+                            ids[j] = generator.generateId();
+                        }
+                        return ids;
+                    }
+                }));
+            }
+        }
+
+        Set<String> set = new HashSet<String>();
+        for (Future<String[]> future : f) {
+            for (String id : future.get()) {
+                if (!set.add(id)) {
+                    log.error("ERROR: " + id);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.println("ids=" + set.size() + ", ids/s=" + (long) (set.size() * 1e9 / elapsed));
+        executorService.shutdown();
+
+        for (int i = 0; i < generators.size(); i++) {
+            generators.get(i).close();
+            clients.get(i).close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package win.hgfdodo.framework.utils;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 测试和基准程序共用的zookeeper环境。
+ * <p>
+ * main()的第一个参数为zookeeper连接串，不传时启动内嵌的TestingServer；close()只关闭内嵌的服务器，
+ * 通过{@link #newClient()}创建的客户端由调用方负责启动和关闭。
+ */
+public class TestZookeeper implements Closeable {
+
+    private final static int SESSION_TIMEOUT_MS = 6000;
+
+    private final TestingServer server;
+    private final String connectString;
+
+    private TestZookeeper(TestingServer server, String connectString) {
+        this.server = server;
+        this.connectString = connectString;
+    }
+
+    public static TestZookeeper start(String[] args) throws Exception {
+        if (args.length > 0) {
+            return new TestZookeeper(null, args[0]);
+        }
+        TestingServer server = new TestingServer();
+        return new TestZookeeper(server, server.getConnectString());
+    }
+
+    public String getConnectString() {
+        return connectString;
+    }
+
+    /**
+     * 是否使用内嵌的TestingServer，只有内嵌的服务器可以{@link #restart()}
+     */
+    public boolean isEmbedded() {
+        return server != null;
+    }
+
+    /**
+     * 重启内嵌的服务器，连接会断开但会话不过期
+     */
+    public void restart() throws Exception {
+        if (server == null) {
+            throw new IllegalStateException("external zookeeper can not be restarted");
+        }
+        server.restart();
+    }
+
+    /**
+     * 创建未启动的客户端，会话超时6秒
+     */
+    public CuratorFramework newClient() {
+        return newClient(SESSION_TIMEOUT_MS);
+    }
+
+    /**
+     * 创建未启动的客户端，连接超时与会话超时相同
+     */
+    public CuratorFramework newClient(int sessionTimeoutMs) {
+        return CuratorFrameworkFactory.builder()
+                .connectString(connectString)
+                .sessionTimeoutMs(sessionTimeoutMs)
+                .connectionTimeoutMs(sessionTimeoutMs)
+                .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                .build();
+    }
+
+    public void close() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * 多次gc后的已用堆内存，用于估算对象占用
+     */
+    public static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}